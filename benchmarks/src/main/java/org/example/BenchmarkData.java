@@ -0,0 +1,70 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Packets and databases shared by the benchmarks.
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return The name of the i-th generated local record.
+     */
+    static String hostName(int i) {
+        return "host" + i + ".zone" + (i % 1000) + ".example.com";
+    }
+
+    /**
+     * Builds a recursive query with one question.
+     */
+    static byte[] query(String name, int qtype) {
+        byte[] wire = LocalRecordTable.nameToWire(name);
+        ByteBuffer buffer = ByteBuffer.allocate(DNSPacketUtil.HEADER_LENGTH + wire.length + 4);
+        buffer.putShort((short) 0x1234).putShort((short) 0x0100).putShort((short) 1)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        buffer.put(wire).putShort((short) qtype).putShort((short) LocalRecordTable.CLASS_IN);
+        return buffer.array();
+    }
+
+    /**
+     * Builds the answer an upstream server would send: the query echoed with one A record (TTL 60).
+     */
+    static byte[] answer(byte[] query, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length + 16);
+        buffer.put(query, 0, length);
+        buffer.put(2, (byte) 0x81).put(3, (byte) 0x80).putShort(6, (short) 1); // QR, RD, RA, ANCOUNT = 1
+        buffer.putShort((short) 0xC00C).putShort((short) LocalRecordTable.TYPE_A)
+                .putShort((short) LocalRecordTable.CLASS_IN).putInt(60).putShort((short) 4);
+        buffer.put(new byte[] {1, 2, 3, 4});
+        return buffer.array();
+    }
+
+    /**
+     * Builds a table of size A records named by hostName().
+     */
+    static LocalRecordTable table(int size) {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        for (int i = 0; i < size; i++) {
+            builder.add("10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF), hostName(i));
+        }
+        return builder.build(false);
+    }
+
+    /**
+     * Loads a LocalDatabase from a temporary data file of size A records plus one blocked name.
+     */
+    static LocalDatabase database(int size) throws IOException {
+        File file = File.createTempFile("dnsrelay-bench", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println("0.0.0.0 blocked.example.com");
+            for (int i = 0; i < size; i++) {
+                out.println("10.0." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + " " + hostName(i));
+            }
+        }
+        return LocalDatabase.load(file.getPath(), false, 0);
+    }
+}
@@ -0,0 +1,43 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * An in-process upstream DNS server on the loopback interface that answers every query with one A record.
+ */
+final class FakeUpstream implements Closeable {
+    private final DatagramChannel channel;
+
+    FakeUpstream() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread thread = new Thread(this::serve, "fake-upstream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress client = channel.receive(buffer);
+                channel.send(ByteBuffer.wrap(BenchmarkData.answer(buffer.array(), buffer.position())), client);
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
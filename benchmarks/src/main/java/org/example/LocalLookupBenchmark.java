@@ -0,0 +1,56 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local database lookups at different table sizes. Queries cycle through names spread over the whole
+ * table, so the large tables also measure cache misses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LocalLookupBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"1000", "100000", "5000000"})
+    public int size;
+
+    private LocalDatabase.Snapshot snapshot;
+    private final DNSQuestion[] hits = new DNSQuestion[QUERIES];
+    private final DNSQuestion[] misses = new DNSQuestion[QUERIES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        snapshot = new LocalDatabase.Snapshot(BenchmarkData.table(size), null);
+        for (int i = 0; i < QUERIES; i++) {
+            int index = (int) ((long) i * 7919 % size);
+            hits[i] = parsed(BenchmarkData.hostName(index));
+            misses[i] = parsed("miss" + index + ".zone" + (index % 1000) + ".example.com");
+        }
+    }
+
+    private static DNSQuestion parsed(String name) {
+        byte[] request = BenchmarkData.query(name, LocalRecordTable.TYPE_A);
+        DNSQuestion question = new DNSQuestion();
+        question.parse(request, request.length);
+        return question;
+    }
+
+    @Benchmark
+    public long hit() {
+        DNSQuestion q = hits[next++ & (QUERIES - 1)];
+        return snapshot.lookup(q.getData(), q.getNameStart(), q.getNameEnd(), q.getNameHash());
+    }
+
+    @Benchmark
+    public long miss() {
+        DNSQuestion q = misses[next++ & (QUERIES - 1)];
+        return snapshot.lookup(q.getData(), q.getNameStart(), q.getNameEnd(), q.getNameHash());
+    }
+}
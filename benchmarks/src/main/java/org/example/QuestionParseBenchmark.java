@@ -0,0 +1,42 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the header and question of a query, as every packet does before anything else.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuestionParseBenchmark {
+    private byte[] request;
+    private final DNSQuestion question = new DNSQuestion();
+
+    @Setup
+    public void setUp() {
+        request = BenchmarkData.query("www.Example-Domain.co.uk", LocalRecordTable.TYPE_A);
+    }
+
+    /**
+     * In-place parse and name hash: the local-answer path.
+     */
+    @Benchmark
+    public int parse() {
+        question.parse(request, request.length);
+        return question.getNameHash();
+    }
+
+    /**
+     * Parse plus the dotted name string that cache lookups and forwarding need.
+     */
+    @Benchmark
+    public String parseAndDomainName() {
+        question.parse(request, request.length);
+        return question.getDomainName();
+    }
+}
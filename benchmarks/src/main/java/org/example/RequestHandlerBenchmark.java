@@ -0,0 +1,83 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of DNSRequestHandler.run() for each way a query can be answered, with an in-process
+ * fake upstream on the loopback interface for the forwarded case.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHandlerBenchmark {
+    private final InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000);
+    private long sent;
+    private final ResponseSender sender = (response, length, to) -> sent += length;
+
+    private FakeUpstream fakeUpstream;
+    private UpstreamPool upstream;
+    private RelayContext cachedContext;   // with a response cache
+    private RelayContext uncachedContext; // every non-local query goes upstream
+    private byte[] localHit;
+    private byte[] blocked;
+    private byte[] cacheHit;
+    private byte[] forwarded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        LocalDatabase database = BenchmarkData.database(1000);
+        fakeUpstream = new FakeUpstream();
+        upstream = new UpstreamPool(List.of(fakeUpstream.getAddress()), 1, 5000, 1232, true, true, 0);
+        DNSCache cache = new DNSCache(1000);
+        cachedContext = new RelayContext(database, cache, upstream, null, null, 1232, RelayContext.OVERLOAD_REFUSE, false, 0);
+        uncachedContext = new RelayContext(database, null, upstream, null, null, 1232, RelayContext.OVERLOAD_REFUSE, false, 0);
+
+        localHit = BenchmarkData.query(BenchmarkData.hostName(7), LocalRecordTable.TYPE_A);
+        blocked = BenchmarkData.query("blocked.example.com", LocalRecordTable.TYPE_A);
+        cacheHit = BenchmarkData.query("cached.example.org", LocalRecordTable.TYPE_A);
+        forwarded = BenchmarkData.query("upstream.example.org", LocalRecordTable.TYPE_A);
+        cache.put("cached.example.org", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.RD,
+                BenchmarkData.answer(cacheHit, cacheHit.length));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        upstream.close();
+        fakeUpstream.close();
+    }
+
+    @Benchmark
+    public long localHit() {
+        new DNSRequestHandler(cachedContext, sender, localHit.clone(), client).run();
+        return sent;
+    }
+
+    @Benchmark
+    public long blocked() {
+        new DNSRequestHandler(cachedContext, sender, blocked.clone(), client).run();
+        return sent;
+    }
+
+    @Benchmark
+    public long cacheHit() {
+        new DNSRequestHandler(cachedContext, sender, cacheHit.clone(), client).run();
+        return sent;
+    }
+
+    /**
+     * A full upstream round trip over loopback, including the timer wheel and the reader thread hand-off.
+     */
+    @Benchmark
+    public long forwarded() {
+        new DNSRequestHandler(uncachedContext, sender, forwarded.clone(), client).run();
+        return sent;
+    }
+}
@@ -0,0 +1,44 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the responses the relay builds itself: a local record, NXDOMAIN for a blocked name and SERVFAIL.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWriterBenchmark {
+    private final DNSQuestion question = new DNSQuestion();
+    private final byte[] out = new byte[512];
+    private LocalDatabase.Snapshot snapshot;
+    private long entry;
+
+    @Setup
+    public void setUp() {
+        byte[] request = BenchmarkData.query(BenchmarkData.hostName(7), LocalRecordTable.TYPE_A);
+        question.parse(request, request.length);
+        snapshot = new LocalDatabase.Snapshot(BenchmarkData.table(1000), null);
+        entry = snapshot.lookup(request, question.getNameStart(), question.getNameEnd(), question.getNameHash());
+    }
+
+    @Benchmark
+    public int localHit() {
+        return DNSResponseWriter.writeLocalAnswer(question, out, snapshot, entry, 1232, out.length);
+    }
+
+    @Benchmark
+    public int nxdomain() {
+        return DNSResponseWriter.writeError(question, out, 3, 1232);
+    }
+
+    @Benchmark
+    public int servfail() {
+        return DNSResponseWriter.writeError(question, out, 2, 1232);
+    }
+}
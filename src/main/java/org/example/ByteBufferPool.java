@@ -0,0 +1,67 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A simple pool of equally sized ByteBuffers, so that packet I/O and response encoding do not allocate
+ * (and later free) a buffer per packet. The idle buffers sit in an array-backed queue, so taking and
+ * returning a buffer allocates nothing either, whichever thread (platform or virtual) does it.
+ */
+class ByteBufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * A pool of direct buffers, for channel I/O.
+     * @param bufferSize The capacity of every buffer.
+     * @param maxPooled The maximum number of idle buffers kept; extra released buffers are left to the GC.
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, true);
+    }
+
+    /**
+     * @param bufferSize The capacity of every buffer.
+     * @param maxPooled The maximum number of idle buffers kept; extra released buffers are left to the GC.
+     * @param direct Whether to allocate direct buffers (for channel I/O) or heap buffers (whose array() is
+     *               used to encode responses).
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * @return A cleared buffer from the pool, or a newly allocated one if the pool is empty.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            allocated.increment();
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && buffer.isDirect() == direct) {
+            buffers.offer(buffer); // dropped if the pool is full
+        }
+    }
+
+    /**
+     * @return The number of buffers allocated so far because the pool was empty.
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+}
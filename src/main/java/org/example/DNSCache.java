@@ -0,0 +1,252 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DNSCache is a bounded, thread-safe cache of upstream DNS responses keyed by (qname, qtype, qclass) and
+ * the query flags that change the answer: its EDNS0 state, so that an answer with an OPT record or DNSSEC
+ * signatures is only replayed to clients that asked the same way (RFC 6891 section 7), and the RD and CD
+ * bits, so that an answer the upstream did not validate is never replayed to a client that wants
+ * validation. Positive answers live for the minimum TTL found in the response; NXDOMAIN/NODATA answers
+ * are cached according to the SOA record in the authority section (RFC 2308). Cached responses are
+ * returned with the client's transaction ID and question patched in, and with every TTL decremented by
+ * the time spent in the cache.
+ */
+class DNSCache {
+    private static final int SEGMENTS = 16;           // number of independently locked LRU segments
+    private static final long MAX_TTL = 86400;        // never keep a positive answer longer than a day
+    private static final long MAX_NEGATIVE_TTL = 10800; // RFC 2308 recommends capping negative TTLs at 1-3 hours
+
+    // Query flags in the cache key (see flagsOf): the EDNS0 state, one of the first three, plus RD and CD.
+    static final int NO_EDNS = 0; // the query had no OPT record
+    static final int EDNS = 1;    // the query had an OPT record without the DO bit
+    static final int EDNS_DO = 2; // the query had an OPT record with the DO bit (DNSSEC records wanted)
+    static final int RD = 0x04;   // recursion desired
+    static final int CD = 0x08;   // checking disabled: the upstream may answer without validating
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries The maximum number of responses kept in the cache.
+     */
+    public DNSCache(int maxEntries) {
+        int perSegment = Math.max(1, maxEntries / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * Looks up a cached response for the given question.
+     * @param domainName The lowercased query name.
+     * @param queryType The query type.
+     * @param queryClass The query class.
+     * @param flags The query flags that are part of the key (see flagsOf).
+     * @param request The client's query, used to patch the transaction ID, RD flag and question name.
+     * @return A fresh response packet ready to send to the client, or null if nothing usable is cached.
+     */
+    public byte[] get(String domainName, int queryType, int queryClass, int flags, byte[] request) {
+        CacheKey key = new CacheKey(domainName, queryType, queryClass, flags);
+        Segment segment = segmentFor(key);
+        Entry entry;
+        long now = System.nanoTime();
+        synchronized (segment) {
+            entry = segment.map.get(key);
+            if (entry != null && now - entry.expiresAt >= 0) {
+                segment.map.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        byte[] response = entry.response.clone();
+        // Transaction ID and RD flag come from this client's query.
+        response[0] = request[0];
+        response[1] = request[1];
+        response[2] = (byte) ((response[2] & ~0x01) | (request[2] & 0x01));
+        // Copy the question name so that the client sees its own letter case (0x20 randomization).
+        int nameEnd = DNSPacketUtil.skipName(request, DNSPacketUtil.HEADER_LENGTH, request.length);
+        if (nameEnd > 0 && nameEnd <= response.length) {
+            System.arraycopy(request, DNSPacketUtil.HEADER_LENGTH, response, DNSPacketUtil.HEADER_LENGTH,
+                    nameEnd - DNSPacketUtil.HEADER_LENGTH);
+        }
+        // Age every TTL by the whole seconds spent in the cache.
+        long elapsed = (now - entry.storedAt) / 1_000_000_000L;
+        if (elapsed > 0) {
+            for (int ttlOffset : entry.ttlOffsets) {
+                long ttl = DNSPacketUtil.readU32(response, ttlOffset);
+                DNSPacketUtil.writeU32(response, ttlOffset, Math.max(0, ttl - elapsed));
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Stores an upstream response if it is cacheable. Truncated responses, errors other than NXDOMAIN and
+     * negative answers without an SOA record are ignored.
+     * @param domainName The lowercased query name.
+     * @param queryType The query type.
+     * @param queryClass The query class.
+     * @param flags The flags of the query the response answers (see flagsOf).
+     * @param response The response packet received from the upstream DNS server.
+     */
+    public void put(String domainName, int queryType, int queryClass, int flags, byte[] response) {
+        if (response.length < DNSPacketUtil.HEADER_LENGTH) {
+            return;
+        }
+        boolean isResponse = (response[2] & 0x80) != 0;
+        boolean truncated = (response[2] & 0x02) != 0;
+        int rcode = response[3] & 0x0F;
+        if (!isResponse || truncated || (rcode != 0 && rcode != 3)) {
+            return;
+        }
+        int qdCount = DNSPacketUtil.readU16(response, 4);
+        int anCount = DNSPacketUtil.readU16(response, 6);
+        int nsCount = DNSPacketUtil.readU16(response, 8);
+        int arCount = DNSPacketUtil.readU16(response, 10);
+        if (qdCount != 1) {
+            return;
+        }
+        int index = DNSPacketUtil.skipName(response, DNSPacketUtil.HEADER_LENGTH, response.length);
+        if (index < 0 || index + 4 > response.length) {
+            return;
+        }
+        index += 4;
+
+        boolean negative = rcode == 3 || anCount == 0;
+        long minTtl = Long.MAX_VALUE;
+        long negativeTtl = -1;
+        int[] ttlOffsets = new int[anCount + nsCount + arCount];
+        int ttlCount = 0;
+        int recordCount = anCount + nsCount + arCount;
+        for (int i = 0; i < recordCount; i++) {
+            index = DNSPacketUtil.skipName(response, index, response.length);
+            if (index < 0 || index + 10 > response.length) {
+                return; // Malformed record; do not cache.
+            }
+            int type = DNSPacketUtil.readU16(response, index);
+            long ttl = DNSPacketUtil.readU32(response, index + 4);
+            int rdLength = DNSPacketUtil.readU16(response, index + 8);
+            int rdataStart = index + 10;
+            if (rdataStart + rdLength > response.length) {
+                return;
+            }
+            if (type != DNSPacketUtil.TYPE_OPT) {
+                // The OPT pseudo-record uses the TTL field for EDNS flags, so it is neither aged nor counted.
+                ttlOffsets[ttlCount++] = index + 4;
+                minTtl = Math.min(minTtl, ttl);
+                boolean inAuthority = i >= anCount && i < anCount + nsCount;
+                if (negative && inAuthority && type == DNSPacketUtil.TYPE_SOA && rdLength >= 20) {
+                    // RFC 2308: negative TTL is the minimum of the SOA TTL and the SOA MINIMUM field.
+                    long soaMinimum = DNSPacketUtil.readU32(response, rdataStart + rdLength - 4);
+                    negativeTtl = Math.min(ttl, soaMinimum);
+                }
+            }
+            index = rdataStart + rdLength;
+        }
+
+        long ttl;
+        if (negative) {
+            ttl = Math.min(negativeTtl, MAX_NEGATIVE_TTL);
+        } else {
+            ttl = Math.min(minTtl, MAX_TTL);
+        }
+        if (ttl <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Entry entry = new Entry(response.clone(), Arrays.copyOf(ttlOffsets, ttlCount), now,
+                now + ttl * 1_000_000_000L);
+        CacheKey key = new CacheKey(domainName, queryType, queryClass, flags);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.map.put(key, entry);
+        }
+    }
+
+    /**
+     * @return The flags part of the cache key for a parsed query: its EDNS0 state, RD and CD.
+     */
+    static int flagsOf(DNSQuestion question) {
+        int flags = !question.hasEdns() ? NO_EDNS : question.isDnssecOk() ? EDNS_DO : EDNS;
+        if (question.isRecursionDesired()) {
+            flags |= RD;
+        }
+        if (question.isCheckingDisabled()) {
+            flags |= CD;
+        }
+        return flags;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        long h = getHits();
+        long m = getMisses();
+        double ratio = h + m == 0 ? 0.0 : (double) h / (h + m);
+        return String.format("DNS cache: entries=%d, hits=%d, misses=%d, hitRatio=%.2f%%, evictions=%d",
+                size(), h, m, ratio * 100, getEvictions());
+    }
+
+    private Segment segmentFor(CacheKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private record CacheKey(String domainName, int queryType, int queryClass, int flags) {
+    }
+
+    private record Entry(byte[] response, int[] ttlOffsets, long storedAt, long expiresAt) {
+    }
+
+    /**
+     * One LRU segment: an access-ordered LinkedHashMap guarded by its own monitor.
+     */
+    private final class Segment {
+        final LinkedHashMap<CacheKey, Entry> map;
+
+        Segment(int capacity) {
+            map = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.example;
+
+import java.io.*;
+
+/**
+ * DNSDatabaseCompiler turns a text data file (dnsrelay.txt) into a compiled database image that DNSRelay
+ * maps at startup instead of parsing it:
+ *
+ * <pre>
+ * java -cp out org.example.DNSDatabaseCompiler [-d] dnsrelay.txt [dnsrelay.bin]
+ * java -cp out org.example.DNSRelay dnsrelay.bin
+ * java -cp out org.example.DNSDatabaseCompiler -verify dnsrelay.bin
+ * </pre>
+ *
+ * The relay only checks an image's header when it maps it; the checksum over the whole table is checked
+ * here, on every image the compiler writes and on an existing image with -verify.
+ *
+ * Recompiling over an image a relay is serving is safe: the new image replaces the old one in a single
+ * rename, and the relay picks it up like any other data file change.
+ */
+public class DNSDatabaseCompiler {
+    public static void main(String[] args) {
+        int debugLevel = 0;
+        boolean verifyOnly = false;
+        String inputFileName = null;
+        String outputFileName = null;
+        for (String arg : args) {
+            if (arg.equalsIgnoreCase("-d")) {
+                debugLevel = 1;
+            } else if (arg.equalsIgnoreCase("-verify")) {
+                verifyOnly = true;
+            } else if (inputFileName == null) {
+                inputFileName = arg;
+            } else if (outputFileName == null) {
+                outputFileName = arg;
+            } else {
+                inputFileName = null; // too many arguments
+                break;
+            }
+        }
+        if (inputFileName == null || verifyOnly && outputFileName != null) {
+            System.err.println("Usage: DNSDatabaseCompiler [-d] <data file> [image file]");
+            System.err.println("       DNSDatabaseCompiler -verify <image file>");
+            System.exit(2);
+        }
+        if (verifyOnly) {
+            verifyImage(new File(inputFileName));
+            return;
+        }
+        if (outputFileName == null) {
+            // dnsrelay.txt -> dnsrelay.bin
+            int dot = inputFileName.lastIndexOf('.');
+            String stem = dot > inputFileName.lastIndexOf(File.separatorChar) ? inputFileName.substring(0, dot) : inputFileName;
+            outputFileName = stem + ".bin";
+        }
+
+        long start = System.nanoTime();
+        LocalRecordTable table;
+        try (BufferedReader br = new BufferedReader(new FileReader(inputFileName))) {
+            table = LocalDatabase.parse(br, false, debugLevel);
+        } catch (IOException e) {
+            System.err.println("Failed to read data from: " + inputFileName + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        File outputFile = new File(outputFileName);
+        try {
+            LocalRecordImage.write(table, outputFile);
+            LocalRecordImage.verify(outputFile); // read back what the relay will map
+        } catch (IOException e) {
+            System.err.println("Failed to write image: " + outputFileName + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Compiled " + table.size() + " entries from " + inputFileName + " into "
+                + outputFileName + " (" + outputFile.length() + " bytes, image version " + LocalRecordImage.VERSION
+                + ", checksum verified) in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void verifyImage(File imageFile) {
+        long start = System.nanoTime();
+        try {
+            int entries = LocalRecordImage.verify(imageFile);
+            System.out.println("Verified " + entries + " entries in " + imageFile + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            System.err.println("Invalid image: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
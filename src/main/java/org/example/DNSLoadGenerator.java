@@ -0,0 +1,482 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * DNSLoadGenerator measures a running relay end to end on one machine. It starts a StubUpstream on
+ * loopback for the relay to forward to, then sends open-loop UDP traffic at a fixed rate, either drawn
+ * from a Zipf distribution over synthetic and local names or replayed from a query log, and reports the
+ * achieved rate, timeouts and latency percentiles for each path (local hit, blocked, forwarded).
+ *
+ * <pre>
+ * java -cp out org.example.DNSRelay -engine nio -p 5300 127.0.0.1:5353 dnsrelay.txt
+ * java -cp out org.example.DNSLoadGenerator -relay 127.0.0.1:5300 -stub 5353 -qps 20000 -db dnsrelay.txt
+ * </pre>
+ *
+ * Latency is measured from the time a query was scheduled to be sent, not from when it actually went
+ * out, so a stalled sender shows up in the percentiles instead of silently lowering the load.
+ */
+public class DNSLoadGenerator {
+    private static final String[] PATH_NAMES = {"local hit", "blocked", "forwarded"};
+    private static final int PATH_LOCAL = 0;
+    private static final int PATH_BLOCKED = 1;
+    private static final int PATH_FORWARDED = 2;
+    private static final int PATHS = 3;
+
+    public static void main(String[] args) throws Exception {
+        // Default configurations
+        String relay = "127.0.0.1:53";     // the relay under test
+        int stubPort = 5353;               // port of the stub upstream (0: none, the relay uses its own upstream)
+        long latencyMillis = 20;           // stub upstream answer delay
+        long jitterMillis = 5;             // extra random stub delay
+        double lossRatio = 0;              // share of queries the stub drops
+        double nxdomainRatio = 0.1;        // share of names the stub answers with NXDOMAIN
+        int qps = 1000;                    // offered load
+        int durationSeconds = 10;          // length of the measurement
+        long timeoutMillis = 2000;         // answers later than this count as timeouts
+        int nameCount = 100_000;           // synthetic (forwarded) names
+        double zipfExponent = 1.0;         // skew of the name popularity
+        double localRatio = 0.2;           // share of queries for names in the data file
+        String dataFileName = "dnsrelay.txt";
+        String replayFileName = null;      // replay "name [type]" lines instead of synthetic traffic
+        boolean stubOnly = false;          // only run the stub upstream
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i].toLowerCase();
+                boolean hasValue = i + 1 < args.length;
+                if (arg.equals("-stubonly")) {
+                    stubOnly = true;
+                } else if (!hasValue) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                } else if (arg.equals("-relay")) {
+                    relay = args[++i];
+                } else if (arg.equals("-stub")) {
+                    stubPort = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-latency")) {
+                    latencyMillis = Long.parseLong(args[++i]);
+                } else if (arg.equals("-jitter")) {
+                    jitterMillis = Long.parseLong(args[++i]);
+                } else if (arg.equals("-loss")) {
+                    lossRatio = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-nx")) {
+                    nxdomainRatio = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-qps")) {
+                    qps = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-duration")) {
+                    durationSeconds = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-timeout")) {
+                    timeoutMillis = Long.parseLong(args[++i]);
+                } else if (arg.equals("-names")) {
+                    nameCount = Integer.parseInt(args[++i]);
+                } else if (arg.equals("-zipf")) {
+                    zipfExponent = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-local")) {
+                    localRatio = Double.parseDouble(args[++i]);
+                } else if (arg.equals("-db")) {
+                    dataFileName = args[++i];
+                } else if (arg.equals("-replay")) {
+                    replayFileName = args[++i];
+                } else {
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: DNSLoadGenerator [-relay host:port] [-stub port] [-latency ms] [-jitter ms]"
+                    + " [-loss ratio] [-nx ratio] [-qps n] [-duration s] [-timeout ms] [-names n] [-zipf s]"
+                    + " [-local ratio] [-db file] [-replay file] [-stubonly]");
+            System.exit(2);
+            return;
+        }
+        // Answers are matched by their 16-bit transaction ID, so at most 65536 queries may be pending at
+        // once; beyond that an ID comes round again before its answer is due and counts as a timeout.
+        long pendingAtTimeout = qps * timeoutMillis / 1000;
+        if (pendingAtTimeout > Run.IDS) {
+            System.err.println("-qps " + qps + " with -timeout " + timeoutMillis + " ms can have " + pendingAtTimeout
+                    + " queries pending, more than the " + Run.IDS + " transaction IDs; lower -timeout to at most "
+                    + Run.IDS * 1000L / Math.max(1, qps) + " ms");
+            System.exit(2);
+            return;
+        }
+
+        StubUpstream stub = null;
+        if (stubPort > 0) {
+            stub = new StubUpstream(new InetSocketAddress(InetAddress.getLoopbackAddress(), stubPort),
+                    latencyMillis, jitterMillis, lossRatio, nxdomainRatio);
+            System.out.println("Stub upstream on " + stub.getAddress() + " (latency " + latencyMillis + "+"
+                    + jitterMillis + " ms, loss " + lossRatio + ", NXDOMAIN " + nxdomainRatio + ")");
+        }
+        if (stubOnly) {
+            if (stub == null) {
+                System.err.println("-stubonly needs a stub port");
+                System.exit(2);
+            }
+            Thread.currentThread().join(); // serve until killed
+        }
+
+        // The data file tells which queries the relay answers itself, and gives the local names to query.
+        LocalDatabase database = LocalDatabase.load(dataFileName, false, 0);
+        if (database == null) {
+            System.exit(1);
+        }
+        Workload workload = replayFileName != null
+                ? Workload.replay(replayFileName, database.snapshot())
+                : Workload.synthetic(dataFileName, database.snapshot(), nameCount, zipfExponent, localRatio);
+        if (workload == null) {
+            System.exit(1);
+        }
+
+        int colon = relay.lastIndexOf(':');
+        InetSocketAddress relayAddress = colon < 0 ? new InetSocketAddress(relay, 53)
+                : new InetSocketAddress(relay.substring(0, colon), Integer.parseInt(relay.substring(colon + 1)));
+        System.out.println("Sending " + qps + " qps to " + relayAddress + " for " + durationSeconds + " s ("
+                + workload.describe() + ")");
+        Run run = new Run(relayAddress, workload, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        run.execute(qps, durationSeconds);
+        run.report(durationSeconds);
+        if (stub != null) {
+            stub.close();
+        }
+    }
+
+    /**
+     * The queries to send: pre-encoded packets (without transaction ID) with the path each one takes.
+     */
+    private static final class Workload {
+        private final byte[][] packets;
+        private final byte[] paths;
+        private final double[] localCdf;     // Zipf popularity of the local names, or null
+        private final double[] syntheticCdf; // Zipf popularity of the synthetic names, or null for replay
+        private final int localCount;
+        private final double localRatio;
+        private int replayIndex;
+
+        private Workload(List<byte[]> packets, List<Integer> paths, int localCount, double localRatio,
+                         double zipfExponent) {
+            this.packets = packets.toArray(new byte[0][]);
+            this.paths = new byte[paths.size()];
+            for (int i = 0; i < this.paths.length; i++) {
+                this.paths[i] = paths.get(i).byteValue();
+            }
+            this.localCount = localCount;
+            this.localRatio = localCount > 0 ? localRatio : 0;
+            this.localCdf = localCount > 0 && zipfExponent >= 0 ? zipf(localCount, zipfExponent) : null;
+            this.syntheticCdf = zipfExponent >= 0 ? zipf(this.packets.length - localCount, zipfExponent) : null;
+        }
+
+        /**
+         * Zipf traffic: a share of queries for the exact names of the data file, the rest for names under
+         * "load.test" that only the upstream knows.
+         */
+        static Workload synthetic(String dataFileName, LocalDatabase.Snapshot snapshot, int nameCount,
+                                  double zipfExponent, double localRatio) {
+            List<byte[]> packets = new ArrayList<>();
+            List<Integer> paths = new ArrayList<>();
+            File file = new File(dataFileName);
+            if (LocalRecordImage.isImage(file)) {
+                System.err.println("Cannot list the names of a compiled image; sending no local queries.");
+            } else {
+                try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        String[] parts = line.trim().split("\\s+");
+                        if (parts.length < 2 || parts[0].startsWith("#") || parts[0].equalsIgnoreCase("allow")
+                                || parts[1].startsWith("*") || parts[1].startsWith(".")) {
+                            continue;
+                        }
+                        // "ip domain" or "cname alias target": either way the name is the second word
+                        int qtype = parts[0].contains(":") ? LocalRecordTable.TYPE_AAAA : LocalRecordTable.TYPE_A;
+                        byte[] packet = query(parts[1], qtype);
+                        if (packet != null) {
+                            packets.add(packet);
+                            paths.add(classify(snapshot, packet));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to read data from: " + dataFileName + ": " + e.getMessage());
+                    return null;
+                }
+            }
+            int localCount = packets.size();
+            for (int i = 0; i < nameCount; i++) {
+                byte[] packet = query("n" + i + ".load.test", LocalRecordTable.TYPE_A);
+                packets.add(packet);
+                paths.add(classify(snapshot, packet));
+            }
+            return new Workload(packets, paths, localCount, localRatio, zipfExponent);
+        }
+
+        /**
+         * Replays "name [type]" lines, or the lines of a relay query log (-querylog), in order, over and over.
+         */
+        static Workload replay(String replayFileName, LocalDatabase.Snapshot snapshot) {
+            List<byte[]> packets = new ArrayList<>();
+            List<Integer> paths = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new FileReader(replayFileName))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts[0].isEmpty() || parts[0].startsWith("#")) {
+                        continue;
+                    }
+                    if (parts.length == 7) {
+                        parts = new String[] {parts[2], parts[3]}; // query log: time client qname qtype ...
+                    }
+                    int qtype = parts.length > 1 ? parseType(parts[1]) : LocalRecordTable.TYPE_A;
+                    byte[] packet = qtype > 0 ? query(parts[0], qtype) : null;
+                    if (packet == null) {
+                        System.err.println("Skipping invalid line in replay file: " + line);
+                        continue;
+                    }
+                    packets.add(packet);
+                    paths.add(classify(snapshot, packet));
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to read replay file: " + replayFileName + ": " + e.getMessage());
+                return null;
+            }
+            if (packets.isEmpty()) {
+                System.err.println("Replay file has no queries: " + replayFileName);
+                return null;
+            }
+            return new Workload(packets, paths, 0, 0, -1);
+        }
+
+        private static int parseType(String type) {
+            switch (type.toUpperCase()) {
+                case "A":
+                    return LocalRecordTable.TYPE_A;
+                case "AAAA":
+                    return LocalRecordTable.TYPE_AAAA;
+                default:
+                    try {
+                        return Integer.parseInt(type);
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+            }
+        }
+
+        /**
+         * Predicts the relay's path for a query with the same lookup the relay does.
+         */
+        private static int classify(LocalDatabase.Snapshot snapshot, byte[] packet) {
+            DNSQuestion question = new DNSQuestion();
+            question.parse(packet, packet.length);
+            long entry = snapshot.lookup(packet, question.getNameStart(), question.getNameEnd(), question.getNameHash());
+            if (entry < 0) {
+                return PATH_FORWARDED;
+            }
+            if (snapshot.isBlocked(entry)) {
+                return PATH_BLOCKED;
+            }
+            return question.getQueryClass() == LocalRecordTable.CLASS_IN ? PATH_LOCAL : PATH_FORWARDED;
+        }
+
+        private static byte[] query(String name, int qtype) {
+            byte[] wire = LocalRecordTable.nameToWire(name);
+            if (wire == null) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(DNSPacketUtil.HEADER_LENGTH + wire.length + 4);
+            buffer.putShort((short) 0).putShort((short) 0x0100).putShort((short) 1) // ID, RD, QDCOUNT
+                    .putShort((short) 0).putShort((short) 0).putShort((short) 0);
+            buffer.put(wire).putShort((short) qtype).putShort((short) LocalRecordTable.CLASS_IN);
+            return buffer.array();
+        }
+
+        /**
+         * @return The cumulative distribution of a Zipf distribution over n ranks.
+         */
+        private static double[] zipf(int n, double exponent) {
+            double[] cdf = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += 1 / Math.pow(i + 1, exponent);
+                cdf[i] = total;
+            }
+            for (int i = 0; i < n; i++) {
+                cdf[i] /= total;
+            }
+            return cdf;
+        }
+
+        private static int sample(double[] cdf, ThreadLocalRandom random) {
+            int index = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index, cdf.length - 1);
+        }
+
+        /**
+         * @return The index of the next query to send. Only called by the sender thread.
+         */
+        int next() {
+            if (syntheticCdf == null) {
+                int index = replayIndex;
+                replayIndex = (index + 1) % packets.length;
+                return index;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (localRatio > 0 && random.nextDouble() < localRatio) {
+                return sample(localCdf, random);
+            }
+            return localCount + sample(syntheticCdf, random);
+        }
+
+        String describe() {
+            int[] counts = new int[PATHS];
+            for (byte path : paths) {
+                counts[path]++;
+            }
+            return packets.length + " distinct queries: " + counts[PATH_LOCAL] + " local, " + counts[PATH_BLOCKED]
+                    + " blocked, " + counts[PATH_FORWARDED] + " forwarded"
+                    + (syntheticCdf == null ? ", replayed in order" : ", local share " + localRatio);
+        }
+    }
+
+    /**
+     * One measurement: a sender thread paced by the clock and a receiver thread matching answers by ID.
+     */
+    private static final class Run {
+        static final int IDS = 0x10000;
+
+        private final DatagramChannel channel;
+        private final Workload workload;
+        private final long timeoutNanos;
+        // Per transaction ID: scheduled send time (relative to start, +1 so that 0 means "not pending").
+        private final AtomicLongArray pending = new AtomicLongArray(IDS);
+        private final byte[] pendingPath = new byte[IDS];
+        private final long[] sent = new long[PATHS];
+        private final LatencyHistogram[] latencies = new LatencyHistogram[PATHS]; // microseconds
+        private final LongAdder[] timeouts = new LongAdder[PATHS];
+        private final LongAdder[] servfails = new LongAdder[PATHS];
+        private final LongAdder[] nxdomains = new LongAdder[PATHS];
+        private long start;
+
+        Run(InetSocketAddress relayAddress, Workload workload, long timeoutNanos) throws IOException {
+            this.channel = DatagramChannel.open();
+            this.channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            this.channel.connect(relayAddress);
+            this.workload = workload;
+            this.timeoutNanos = timeoutNanos;
+            for (int i = 0; i < PATHS; i++) {
+                latencies[i] = new LatencyHistogram();
+                timeouts[i] = new LongAdder();
+                servfails[i] = new LongAdder();
+                nxdomains[i] = new LongAdder();
+            }
+        }
+
+        void execute(int qps, int durationSeconds) throws IOException, InterruptedException {
+            start = System.nanoTime();
+            Thread receiver = new Thread(this::receive, "load-receiver");
+            receiver.start();
+
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, qps);
+            long total = (long) qps * durationSeconds;
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            for (long i = 0; i < total; i++) {
+                long scheduled = i * intervalNanos; // relative to start
+                long wait = scheduled - (System.nanoTime() - start);
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                int query = workload.next();
+                int id = (int) (i & (IDS - 1));
+                long previous = pending.getAndSet(id, 0);
+                if (previous != 0) {
+                    timeouts[pendingPath[id]].increment(); // still unanswered when its ID comes round again
+                }
+                pendingPath[id] = workload.paths[query];
+                pending.set(id, scheduled + 1);
+                sent[workload.paths[query]]++;
+
+                byte[] packet = workload.packets[query];
+                buffer.clear();
+                buffer.put(packet).putShort(0, (short) id).flip();
+                try {
+                    channel.write(buffer);
+                } catch (PortUnreachableException e) {
+                    // The relay is not up (yet); the query counts as a timeout.
+                }
+            }
+
+            // Give the last queries their full timeout, then count whatever is left.
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            channel.close();
+            receiver.join();
+            for (int id = 0; id < IDS; id++) {
+                if (pending.get(id) != 0) {
+                    timeouts[pendingPath[id]].increment();
+                }
+            }
+        }
+
+        private void receive() {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            while (channel.isOpen()) {
+                buffer.clear();
+                try {
+                    channel.read(buffer);
+                } catch (PortUnreachableException e) {
+                    continue;
+                } catch (IOException e) {
+                    return; // Closed
+                }
+                long now = System.nanoTime() - start;
+                if (buffer.position() < DNSPacketUtil.HEADER_LENGTH) {
+                    continue;
+                }
+                byte[] data = buffer.array();
+                int id = DNSPacketUtil.readU16(data, 0);
+                long scheduled = pending.getAndSet(id, 0);
+                if (scheduled == 0) {
+                    continue; // Duplicate, or already counted as a timeout.
+                }
+                int path = pendingPath[id];
+                long latency = now - (scheduled - 1);
+                if (latency > timeoutNanos) {
+                    timeouts[path].increment();
+                    continue;
+                }
+                latencies[path].record(TimeUnit.NANOSECONDS.toMicros(latency));
+                int rcode = data[3] & 0x0F;
+                if (rcode == 2) {
+                    servfails[path].increment();
+                } else if (rcode == 3) {
+                    nxdomains[path].increment();
+                }
+            }
+        }
+
+        void report(int durationSeconds) {
+            long totalSent = 0;
+            long totalAnswered = 0;
+            long totalTimeouts = 0;
+            for (int i = 0; i < PATHS; i++) {
+                totalSent += sent[i];
+                totalAnswered += latencies[i].getCount();
+                totalTimeouts += timeouts[i].sum();
+            }
+            System.out.printf("Sent %d queries, %d answered, %d timed out; offered %.0f qps, achieved %.0f qps%n",
+                    totalSent, totalAnswered, totalTimeouts, (double) totalSent / durationSeconds,
+                    (double) totalAnswered / durationSeconds);
+            System.out.printf("%-10s %9s %9s %8s %8s %8s %9s %9s %9s %9s%n", "path", "sent", "answered",
+                    "timeouts", "servfail", "nxdomain", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+            for (int i = 0; i < PATHS; i++) {
+                LatencyHistogram h = latencies[i];
+                System.out.printf("%-10s %9d %9d %8d %8d %8d %9.3f %9.3f %9.3f %9.3f%n", PATH_NAMES[i], sent[i],
+                        h.getCount(), timeouts[i].sum(), servfails[i].sum(), nxdomains[i].sum(),
+                        h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                        h.getValueAtPercentile(99.9) / 1000.0, h.getMax() / 1000.0);
+            }
+        }
+    }
+}
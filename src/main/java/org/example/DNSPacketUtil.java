@@ -0,0 +1,113 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Small helpers for reading and patching raw DNS messages in place.
+ * All offsets are absolute positions inside the message byte array.
+ */
+final class DNSPacketUtil {
+    static final int HEADER_LENGTH = 12;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_OPT = 41;
+    static final int MIN_UDP_PAYLOAD = 512;   // the UDP size every client supports (RFC 1035)
+    static final int MAX_UDP_PAYLOAD = 4096;  // the largest UDP message the relay exchanges with clients
+    static final int MAX_TCP_MESSAGE = 65535; // the largest message the two-byte TCP length prefix allows
+    static final int OPT_RECORD_LENGTH = 11;  // an OPT record without options
+
+    private DNSPacketUtil() {
+    }
+
+    static int readU16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    static long readU32(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    static void writeU16(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    static void writeU32(byte[] data, int offset, long value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Finds the EDNS0 OPT pseudo-record of a message with a single question.
+     * @param data The DNS message.
+     * @param questionEnd The offset just past the question section.
+     * @param limit The message length.
+     * @return The offset of the OPT record's TYPE field (UDP payload size at +2, extended RCODE at +4,
+     *         version at +5, flags at +6), or -1 if there is none or the message is malformed.
+     */
+    static int findOpt(byte[] data, int questionEnd, int limit) {
+        int records = readU16(data, 6) + readU16(data, 8) + readU16(data, 10);
+        int answersAndAuthority = readU16(data, 6) + readU16(data, 8);
+        int index = questionEnd;
+        for (int i = 0; i < records; i++) {
+            index = skipName(data, index, limit);
+            if (index < 0 || index + 10 > limit) {
+                return -1;
+            }
+            if (i >= answersAndAuthority && readU16(data, index) == TYPE_OPT) {
+                return index;
+            }
+            index += 10 + readU16(data, index + 8);
+        }
+        return -1;
+    }
+
+    /**
+     * Removes the EDNS0 OPT pseudo-record from a message with a single question.
+     * @param data The DNS message.
+     * @param questionEnd The offset just past the question section.
+     * @param length The message length.
+     * @return A copy of the message without its OPT record and with ARCOUNT decremented, or a plain copy
+     *         if it has no OPT record.
+     */
+    static byte[] removeOpt(byte[] data, int questionEnd, int length) {
+        int opt = findOpt(data, questionEnd, length);
+        if (opt < 1 || data[opt - 1] != 0) {
+            return Arrays.copyOf(data, length); // none, or not owned by the root name
+        }
+        int start = opt - 1;
+        int end = opt + 10 + readU16(data, opt + 8);
+        byte[] stripped = new byte[length - (end - start)];
+        System.arraycopy(data, 0, stripped, 0, start);
+        System.arraycopy(data, end, stripped, start, length - end);
+        writeU16(stripped, 10, readU16(stripped, 10) - 1);
+        return stripped;
+    }
+
+    /**
+     * Skips over a (possibly compressed) domain name.
+     * @param data The DNS message.
+     * @param offset The offset of the first length byte of the name.
+     * @param limit The message length.
+     * @return The offset of the first byte after the name, or -1 if the name is malformed.
+     */
+    static int skipName(byte[] data, int offset, int limit) {
+        while (offset < limit) {
+            int len = data[offset] & 0xFF;
+            if (len == 0) {
+                return offset + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                // Compression pointer: two bytes and the name ends here.
+                return offset + 2 <= limit ? offset + 2 : -1;
+            }
+            if ((len & 0xC0) != 0) {
+                return -1; // Reserved label types are not supported.
+            }
+            offset += len + 1;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,162 @@
+package org.example;
+
+/**
+ * DNSQuestion is a reusable, allocation-free view of the header and first question of a DNS query.
+ * parse() records offsets into the receive buffer instead of copying the name, and computes the
+ * case-insensitive hash used by LocalRecordTable while it walks the labels.
+ */
+final class DNSQuestion {
+    private byte[] data;
+    private int length;
+    private int transactionID;
+    private int nameStart;
+    private int nameEnd;      // offset just past the terminating zero label
+    private int nameHash;
+    private int queryType;
+    private int queryClass;
+    private int ednsUdpSize;  // UDP payload size from the OPT record, -1 if the query has none
+    private int ednsVersion;
+    private boolean dnssecOk;
+
+    /**
+     * Parses a query in place. The buffer must not be modified while this question is in use.
+     * @param data The receive buffer.
+     * @param length The number of valid bytes in the buffer.
+     * @return true if the packet is a well-formed query with at least one question, false otherwise.
+     */
+    public boolean parse(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+        // Validate that the packet is long enough for a DNS header
+        if (length < DNSPacketUtil.HEADER_LENGTH) {
+            return false;
+        }
+        // Only queries (QR bit == 0) with at least one question are handled.
+        if ((data[2] & 0x80) != 0 || DNSPacketUtil.readU16(data, 4) == 0) {
+            return false;
+        }
+        transactionID = DNSPacketUtil.readU16(data, 0);
+
+        // Walk the QNAME labels; compression pointers are not allowed in a question we parse.
+        int index = DNSPacketUtil.HEADER_LENGTH;
+        while (true) {
+            if (index >= length) {
+                return false;
+            }
+            int len = data[index] & 0xFF;
+            if (len == 0) {
+                index++;
+                break;
+            }
+            if (len > 63 || index + len >= length) {
+                return false; // Malformed label (pointer, reserved type or beyond packet)
+            }
+            index += len + 1;
+        }
+        if (index - DNSPacketUtil.HEADER_LENGTH > 255 || index + 4 > length) {
+            return false;
+        }
+        nameStart = DNSPacketUtil.HEADER_LENGTH;
+        nameEnd = index;
+        nameHash = LocalRecordTable.hashName(data, nameStart, nameEnd);
+        queryType = DNSPacketUtil.readU16(data, index);
+        queryClass = DNSPacketUtil.readU16(data, index + 2);
+        ednsUdpSize = -1;
+        ednsVersion = 0;
+        dnssecOk = false;
+        if (DNSPacketUtil.readU16(data, 10) > 0 && DNSPacketUtil.readU16(data, 4) == 1) {
+            int opt = DNSPacketUtil.findOpt(data, index + 4, length);
+            if (opt >= 0) {
+                ednsUdpSize = DNSPacketUtil.readU16(data, opt + 2);
+                ednsVersion = data[opt + 5] & 0xFF;
+                dnssecOk = (data[opt + 6] & 0x80) != 0;
+            }
+        }
+        return true;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getTransactionID() {
+        return transactionID;
+    }
+
+    public boolean isRecursionDesired() {
+        return (data[2] & 0x01) != 0;
+    }
+
+    /**
+     * @return true if the client asked the upstream not to validate DNSSEC (CD bit).
+     */
+    public boolean isCheckingDisabled() {
+        return (data[3] & 0x10) != 0;
+    }
+
+    public int getNameStart() {
+        return nameStart;
+    }
+
+    public int getNameEnd() {
+        return nameEnd;
+    }
+
+    public int getNameHash() {
+        return nameHash;
+    }
+
+    /**
+     * @return The offset just past QTYPE and QCLASS, i.e. the end of the question section.
+     */
+    public int getQuestionEnd() {
+        return nameEnd + 4;
+    }
+
+    public int getQueryType() {
+        return queryType;
+    }
+
+    public int getQueryClass() {
+        return queryClass;
+    }
+
+    /**
+     * @return true if the query carries an EDNS0 OPT record.
+     */
+    public boolean hasEdns() {
+        return ednsUdpSize >= 0;
+    }
+
+    public int getEdnsVersion() {
+        return ednsVersion;
+    }
+
+    public boolean isDnssecOk() {
+        return dnssecOk;
+    }
+
+    /**
+     * @param advertisedSize The UDP payload size the relay advertises.
+     * @return The largest UDP response this client accepts: 512 without EDNS0, otherwise the smaller of
+     *         its own and the relay's advertised size (but never less than 512).
+     */
+    public int getUdpLimit(int advertisedSize) {
+        if (ednsUdpSize < 0) {
+            return DNSPacketUtil.MIN_UDP_PAYLOAD;
+        }
+        return Math.max(DNSPacketUtil.MIN_UDP_PAYLOAD, Math.min(ednsUdpSize, advertisedSize));
+    }
+
+    /**
+     * Builds the dotted, lowercased query name. This allocates, so the hot path only calls it for
+     * debugging, caching and forwarding.
+     */
+    public String getDomainName() {
+        return LocalRecordTable.nameToString(data, nameStart, nameEnd);
+    }
+}
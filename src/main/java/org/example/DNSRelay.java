@@ -10,12 +10,46 @@ import java.util.concurrent.*;
  * or forward them to a real DNS server.
  */
 public class DNSRelay {
+    private static final int UPSTREAM_SOCKETS = 4;            // UDP channels per upstream server
+    private static final long UPSTREAM_TIMEOUT_MILLIS = 5000; // SERVFAIL if no upstream has answered by then
+    private static final String DEFAULT_DNS_SERVER = "202.106.0.20"; // used if no upstream is given
+    private static final int DEFAULT_EDNS_UDP_SIZE = 1232;    // avoids IP fragmentation (DNS Flag Day 2020)
+    private static final int DEFAULT_VIRTUAL_MAX_IN_FLIGHT = 1024; // forwarded-query cap in virtual thread mode
+    private static final int DEFAULT_BOUNDED_THREADS = 512;       // worker threads in bounded mode
+    private static final int DEFAULT_QUEUE_CAPACITY = 4096;       // queued tasks per lane in bounded mode
+    private static final int RATE_LIMIT_ENTRIES = 65536;          // client networks tracked by the rate limiter
+    private static final long QUERY_LOG_MAX_BYTES = 64L << 20;   // rotate the query log at 64 MB
+    private static final int QUERY_LOG_FILES = 5;                // rotated query logs to keep
+    private static final int QUERY_LOG_CAPACITY = 65536;         // records buffered before the log drops
+
     public static void main(String[] args) {
         // Default configurations
-        String dnsServerIp = "202.106.0.20";   // default real DNS server IP to forward queries
+        List<String> dnsServers = new ArrayList<>(); // real DNS servers to forward queries to ("ip" or "ip:port")
         String dataFileName = "dnsrelay.txt";  // default local DNS database file
         int debugLevel = 0;                    // 0: no debug, 1: debug (-d), 2: verbose debug (-dd)
         int port = 53;                         // UDP port to listen on (53 is standard DNS port)
+        int cacheSize = 10000;                 // maximum cached upstream responses (0 disables the cache)
+        String engine = "classic";             // classic: one blocking receive loop, nio: one event loop per core
+        int loopCount = Runtime.getRuntime().availableProcessors(); // event loops for the nio engine
+        boolean offHeap = false;               // keep the local database outside the Java heap
+        String execMode = "cached";            // cached: platform thread pool, virtual: one virtual thread per query,
+                                               // bounded: fixed workers with bounded, prioritized queues
+        int threads = DEFAULT_BOUNDED_THREADS;  // worker threads in bounded mode
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY; // queued tasks per lane in bounded mode
+        int rateLimit = 0;                     // queries per second per client network (0: no limit)
+        int rateBurst = -1;                    // queries a quiet client network may send at once (-1: 2x rate)
+        int ipv4PrefixLength = 24;             // client networks for the rate limit: IPv4 /24 ...
+        int ipv6PrefixLength = 56;             // ... and IPv6 /56
+        int overloadPolicy = RelayContext.OVERLOAD_REFUSE; // answer to rate-limited and shed queries
+        int maxInFlight = -1;                  // cap on concurrently forwarded queries (-1: mode default, 0: none)
+        int metricsPort = 0;                   // HTTP port for Prometheus metrics on loopback (0: disabled)
+        String queryLogFileName = null;        // structured query log file (null: disabled)
+        int logSampleRate = 1;                 // log one in N queries
+        boolean hedging = true;                // also send slow queries to the next upstream server
+        boolean coalescing = true;             // identical in-flight queries share one upstream query
+        int ednsUdpSize = DEFAULT_EDNS_UDP_SIZE; // EDNS0 UDP payload size advertised to clients and upstreams
+        boolean tcp = true;                    // also answer DNS over TCP on the same port
+        boolean localNoData = false;           // local names answer NODATA for types they have no records of
 
         // Parse command line arguments for debug flags, DNS server IP, and data file name.
         for (int i = 0; i < args.length; i++) {
@@ -28,8 +62,136 @@ public class DNSRelay {
                 }
             } else if (arg.equalsIgnoreCase("-dd")) {
                 debugLevel = 2;
-            } else if (isIpAddress(arg)) {
-                dnsServerIp = arg;
+            } else if (arg.equalsIgnoreCase("-p") && i + 1 < args.length) {
+                try {
+                    port = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid port: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-cache") && i + 1 < args.length) {
+                try {
+                    cacheSize = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid cache size: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-engine") && i + 1 < args.length) {
+                engine = args[++i].toLowerCase();
+                if (!engine.equals("classic") && !engine.equals("nio")) {
+                    System.err.println("Unknown engine: " + engine + " (expected classic or nio)");
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-loops") && i + 1 < args.length) {
+                try {
+                    loopCount = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid loop count: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-offheap")) {
+                offHeap = true;
+            } else if (arg.equalsIgnoreCase("-exec") && i + 1 < args.length) {
+                execMode = args[++i].toLowerCase();
+                if (!execMode.equals("cached") && !execMode.equals("virtual") && !execMode.equals("bounded")) {
+                    System.err.println("Unknown execution mode: " + execMode + " (expected cached, virtual or bounded)");
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-threads") && i + 1 < args.length) {
+                try {
+                    threads = Math.max(2, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid thread count: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-queue") && i + 1 < args.length) {
+                try {
+                    queueCapacity = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid queue capacity: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-ratelimit") && i + 1 < args.length) {
+                try {
+                    rateLimit = Math.max(0, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid rate limit: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-rateburst") && i + 1 < args.length) {
+                try {
+                    rateBurst = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid rate burst: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-rateprefix") && i + 1 < args.length) {
+                // <ipv4 bits> or <ipv4 bits>/<ipv6 bits>, e.g. 32/64 limits every host separately
+                String value = args[++i];
+                int slash = value.indexOf('/');
+                try {
+                    ipv4PrefixLength = Integer.parseInt(slash < 0 ? value : value.substring(0, slash));
+                    if (slash >= 0) {
+                        ipv6PrefixLength = Integer.parseInt(value.substring(slash + 1));
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid rate limit prefix: " + value);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-overload") && i + 1 < args.length) {
+                String policy = args[++i].toLowerCase();
+                if (policy.equals("refuse")) {
+                    overloadPolicy = RelayContext.OVERLOAD_REFUSE;
+                } else if (policy.equals("truncate")) {
+                    overloadPolicy = RelayContext.OVERLOAD_TRUNCATE;
+                } else if (policy.equals("drop")) {
+                    overloadPolicy = RelayContext.OVERLOAD_DROP;
+                } else {
+                    System.err.println("Unknown overload policy: " + policy + " (expected refuse, truncate or drop)");
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-maxinflight") && i + 1 < args.length) {
+                try {
+                    maxInFlight = Math.max(0, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid in-flight limit: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-metrics") && i + 1 < args.length) {
+                try {
+                    metricsPort = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid metrics port: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-querylog") && i + 1 < args.length) {
+                queryLogFileName = args[++i];
+            } else if (arg.equalsIgnoreCase("-logsample") && i + 1 < args.length) {
+                try {
+                    logSampleRate = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid log sample rate: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-nohedge")) {
+                hedging = false;
+            } else if (arg.equalsIgnoreCase("-nocoalesce")) {
+                coalescing = false;
+            } else if (arg.equalsIgnoreCase("-edns") && i + 1 < args.length) {
+                try {
+                    ednsUdpSize = Math.max(DNSPacketUtil.MIN_UDP_PAYLOAD,
+                            Math.min(DNSPacketUtil.MAX_UDP_PAYLOAD, Integer.parseInt(args[++i])));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid EDNS UDP size: " + args[i]);
+                    return;
+                }
+            } else if (arg.equalsIgnoreCase("-notcp")) {
+                tcp = false;
+            } else if (arg.equalsIgnoreCase("-localnodata")) {
+                localNoData = true;
+            } else if (isIpAddress(arg) || (arg.indexOf(':') > 0 && isIpAddress(arg.substring(0, arg.indexOf(':'))))) {
+                // Every address adds an upstream server; ip:port e.g. for a local stub upstream in load tests
+                dnsServers.add(arg);
             } else {
                 dataFileName = arg;
             }
@@ -39,58 +201,122 @@ public class DNSRelay {
             System.out.println("Debug mode level " + debugLevel + " enabled.");
         }
 
-        // Load local DNS records from the data file into a HashMap.
-        Map<String, String> dnsMap = new HashMap<>();
-        InputStream is = null;
+        // Load local DNS records from the data file into a compact, pre-encoded lookup table.
+        LocalDatabase localRecords = LocalDatabase.load(dataFileName, offHeap, debugLevel);
+        if (localRecords == null) {
+            return;
+        }
+
+        if (debugLevel > 0) {
+            System.out.println("Loaded " + localRecords.snapshot().size() + " entries from " + dataFileName);
+        }
+        // Pick up edits of the data file (or its diff file) and console commands without a restart.
+        new DatabaseWatcher(localRecords, debugLevel).start();
+
+        // Convert the DNS server strings to socket addresses for packet forwarding.
+        if (dnsServers.isEmpty()) {
+            dnsServers.add(DEFAULT_DNS_SERVER);
+        }
+        List<InetSocketAddress> dnsServerAddresses = new ArrayList<>();
+        for (String dnsServer : dnsServers) {
+            int colon = dnsServer.indexOf(':');
+            String ip = colon > 0 ? dnsServer.substring(0, colon) : dnsServer;
+            try {
+                int dnsServerPort = colon > 0 ? Integer.parseInt(dnsServer.substring(colon + 1)) : 53;
+                dnsServerAddresses.add(new InetSocketAddress(InetAddress.getByName(ip), dnsServerPort));
+            } catch (NumberFormatException | UnknownHostException e) {
+                System.err.println("Invalid DNS server address: " + dnsServer);
+                return;
+            }
+        }
+
+        // Cache upstream responses so repeated lookups do not pay an upstream round trip.
+        DNSCache cache = cacheSize > 0 ? new DNSCache(cacheSize) : null;
+        if (cache != null && debugLevel > 0) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(cache)));
+        }
+
+        // Forwarded queries share a few multiplexed channels per upstream server instead of one socket per
+        // query, go to the fastest healthy server and are hedged to the next one when it is slow; identical
+        // queries in flight at the same time are sent only once.
+        UpstreamPool upstream;
         try {
-            File file = new File(dataFileName);
-            if (!file.exists()) {
-                // 如果当前目录找不到，尝试src/main/resources/下找
-                file = new File("src/main/resources/" + dataFileName);
+            upstream = new UpstreamPool(dnsServerAddresses, UPSTREAM_SOCKETS, UPSTREAM_TIMEOUT_MILLIS, ednsUdpSize,
+                    hedging, coalescing, debugLevel);
+        } catch (IOException e) {
+            System.err.println("Error: Could not open upstream channels: " + e.getMessage());
+            return;
+        }
+        // Virtual threads make a blocked handler cheap, so that mode caps forwarded queries by default instead.
+        if (maxInFlight < 0) {
+            maxInFlight = execMode.equals("virtual") ? DEFAULT_VIRTUAL_MAX_IN_FLIGHT : 0;
+        }
+        Semaphore upstreamPermits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        // Query log records are written by a background thread, so logging never blocks a request.
+        QueryLog queryLog = null;
+        if (queryLogFileName != null) {
+            try {
+                queryLog = new QueryLog(new File(queryLogFileName), logSampleRate, QUERY_LOG_MAX_BYTES,
+                        QUERY_LOG_FILES, QUERY_LOG_CAPACITY);
+            } catch (IOException e) {
+                System.err.println("Error: Could not open query log " + queryLogFileName + ": " + e.getMessage());
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(queryLog::close));
+        }
+        RelayContext context = new RelayContext(localRecords, cache, upstream, upstreamPermits, queryLog, ednsUdpSize,
+                overloadPolicy, localNoData, debugLevel);
+        // One token bucket per client network keeps a single (possibly spoofed) source from starving the rest.
+        RateLimiter rateLimiter = null;
+        if (rateLimit > 0) {
+            rateLimiter = new RateLimiter(rateLimit, rateBurst > 0 ? rateBurst : 2L * rateLimit, ipv4PrefixLength,
+                    ipv6PrefixLength, RATE_LIMIT_ENTRIES);
+            if (debugLevel > 0) {
+                System.out.println("Rate limiting UDP clients to " + rateLimit + " queries/s per /" + ipv4PrefixLength
+                        + " (IPv4) or /" + ipv6PrefixLength + " (IPv6) network.");
             }
-            if (file.exists()) {
-                is = new FileInputStream(file);
+        }
+
+        // Use a thread pool (or virtual threads) to handle multiple client queries concurrently.
+        ExecutorService threadPool = createExecutor(execMode, threads, queueCapacity, debugLevel);
+
+        // Per-path counters and latencies, always available over JMX and optionally over HTTP.
+        MetricsExporter metricsExporter = new MetricsExporter(context, threadPool);
+        metricsExporter.registerMBean();
+        if (metricsPort > 0) {
+            try {
+                metricsExporter.startHttp(metricsPort);
                 if (debugLevel > 0) {
-                    System.out.println("Loaded data file from file system: " + file.getAbsolutePath());
-                }
-            } else {
-                // 如果文件系统找不到，再尝试用资源加载
-                is = DNSRelay.class.getClassLoader().getResourceAsStream(dataFileName);
-                if (is != null && debugLevel > 0) {
-                    System.out.println("Loaded data file from resources: " + dataFileName);
+                    System.out.println("Metrics available at http://127.0.0.1:" + metricsPort + "/metrics");
                 }
+            } catch (IOException e) {
+                System.err.println("Error: Could not start the metrics endpoint on port " + metricsPort + ": "
+                        + e.getMessage());
+                return;
             }
-        } catch (Exception e) {
-            System.err.println("Error loading data file: " + dataFileName);
-            e.printStackTrace();
-            return;
         }
-        if (is == null) {
-            System.err.println("Failed to load data file: " + dataFileName);
-            return;
-        }
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty() || line.startsWith("#")) {
-                    continue; // Skip empty lines or comments in the data file.
-                }
-                String[] parts = line.split("\\s+");
-                if (parts.length >= 2) {
-                    String ip = parts[0];
-                    String domain = parts[1].toLowerCase(); // store domain in lowercase for case-insensitive matching
-                    dnsMap.put(domain, ip);
-                }
+
+        // Clients retry truncated answers over TCP; pipelined queries on one connection are answered in parallel.
+        if (tcp) {
+            try {
+                new TcpDNSServer(context, port, threadPool).start();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not bind TCP port " + port + ": " + e.getMessage()
+                        + "; answering over UDP only.");
             }
-        } catch (IOException e) {
-            System.err.println("Failed to read data from: " + dataFileName);
-            e.printStackTrace();
-            return;
         }
 
-        if (debugLevel > 0) {
-            System.out.println("Loaded " + dnsMap.size() + " entries from " + dataFileName);
+        if (engine.equals("nio")) {
+            try {
+                new NioDNSServer(context, port, loopCount, threadPool, rateLimiter).start();
+            } catch (IOException e) {
+                System.err.println("Error: Could not bind UDP channels on port " + port + ": " + e.getMessage());
+                System.exit(1);
+            }
+            if (debugLevel > 0) {
+                System.out.println("DNS Relay server started on port " + port + ", forwarding queries to DNS servers " + upstream);
+            }
+            return; // the event loop threads keep the relay running
         }
 
         // Create a UDP socket for listening on the specified port.
@@ -102,24 +328,13 @@ public class DNSRelay {
             return;
         }
         if (debugLevel > 0) {
-            System.out.println("DNS Relay server started on port " + port + ", forwarding queries to DNS server " + dnsServerIp);
+            System.out.println("DNS Relay server started on port " + port + ", forwarding queries to DNS servers " + upstream);
         }
-
-        // Convert the DNS server IP string to an InetAddress for packet forwarding.
-        InetAddress dnsServerAddress;
-        try {
-            dnsServerAddress = InetAddress.getByName(dnsServerIp);
-        } catch (UnknownHostException e) {
-            System.err.println("Invalid DNS server IP address: " + dnsServerIp);
-            serverSocket.close();
-            return;
-        }
-
-        // Use a thread pool to handle multiple client queries concurrently.
-        ExecutorService threadPool = Executors.newCachedThreadPool();
+        ResponseSender sender = (response, length, client) ->
+                serverSocket.send(new DatagramPacket(response, length, client));
 
         // Buffer for incoming DNS query data.
-        byte[] recvBuf = new byte[512]; // 512 bytes is typical for DNS UDP packet (without EDNS)
+        byte[] recvBuf = new byte[DNSPacketUtil.MAX_UDP_PAYLOAD]; // 512 bytes without EDNS0, more with it
 
         // Main loop: listen for client DNS queries and dispatch them for processing.
         while (true) {
@@ -133,13 +348,91 @@ public class DNSRelay {
             // Extract the request data and client information.
             byte[] requestData = Arrays.copyOfRange(requestPacket.getData(), requestPacket.getOffset(),
                     requestPacket.getOffset() + requestPacket.getLength());
-            InetAddress clientAddress = requestPacket.getAddress();
-            int clientPort = requestPacket.getPort();
+            InetSocketAddress client = (InetSocketAddress) requestPacket.getSocketAddress();
+            RelayMetrics metrics = context.getMetrics();
+            metrics.received.increment();
             // Create a handler to process this query and submit it to the thread pool.
-            DNSRequestHandler handler = new DNSRequestHandler(serverSocket, dnsMap, dnsServerAddress,
-                    requestData, clientAddress, clientPort, debugLevel);
-            threadPool.execute(handler);
+            DNSRequestHandler handler = new DNSRequestHandler(context, sender, requestData, client);
+            try {
+                if (rateLimiter != null && !rateLimiter.tryAcquire(client.getAddress())) {
+                    metrics.rateLimited.increment();
+                    handler.shed();
+                } else if (threadPool instanceof PriorityExecutor) {
+                    // Answer locally in the urgent lane; only queries that miss go to the forward lane.
+                    PriorityExecutor priorityPool = (PriorityExecutor) threadPool;
+                    try {
+                        priorityPool.executeUrgent(() -> answerOrForward(handler, priorityPool, metrics));
+                    } catch (RejectedExecutionException e) {
+                        metrics.shed.increment();
+                        handler.shed();
+                    }
+                } else {
+                    try {
+                        threadPool.execute(handler);
+                    } catch (RejectedExecutionException e) {
+                        metrics.shed.increment();
+                        handler.shed();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("IO error while answering " + client + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answers a query from the local database or the cache, and hands it to the forward lane otherwise.
+     * Runs in the urgent lane of the bounded executor.
+     */
+    private static void answerOrForward(DNSRequestHandler handler, PriorityExecutor executor, RelayMetrics metrics) {
+        try {
+            if (handler.tryAnswerLocally()) {
+                return;
+            }
+            try {
+                executor.execute(handler);
+            } catch (RejectedExecutionException e) {
+                metrics.shed.increment();
+                handler.shed();
+            }
+        } catch (IOException e) {
+            System.err.println("Error handling DNS request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates the executor that runs request handlers.
+     * Virtual threads are looked up reflectively so the relay still builds for Java 17; on an older
+     * runtime the virtual mode falls back to the cached thread pool.
+     * @param execMode "cached", "virtual" or "bounded".
+     * @param threads The number of worker threads in bounded mode.
+     * @param queueCapacity The capacity of each queue in bounded mode.
+     * @param debugLevel The debug level (0, 1 or 2).
+     * @return The executor for request handlers.
+     */
+    private static ExecutorService createExecutor(String execMode, int threads, int queueCapacity, int debugLevel) {
+        if (execMode.equals("bounded")) {
+            if (debugLevel > 0) {
+                System.out.println("Handling requests on " + threads + " worker threads with queues of "
+                        + queueCapacity + ".");
+            }
+            // An eighth of the workers only answer locally, so a stalled upstream cannot block them all.
+            return new PriorityExecutor(threads, threads / 8, queueCapacity);
+        }
+        if (execMode.equals("virtual")) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                if (debugLevel > 0) {
+                    System.out.println("Handling requests on virtual threads.");
+                }
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads need Java 21 or newer (running " + Runtime.version()
+                        + "); falling back to the cached thread pool.");
+            }
         }
+        return Executors.newCachedThreadPool();
     }
 
     /**
@@ -2,253 +2,350 @@ package org.example;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 
 class DNSRequestHandler implements Runnable {
-    private DatagramSocket serverSocket;
-    private Map<String, String> dnsMap;
-    private InetAddress dnsServerAddress;
+    private RelayContext context;
+    private ResponseSender sender;
+    private UpstreamPool upstream;
+    private DNSCache cache;
+    private Semaphore upstreamPermits;
     private byte[] requestData;
-    private InetAddress clientAddress;
-    private int clientPort;
+    private InetSocketAddress client;
     private int debugLevel;
+    private final long startNanos; // when the query was received, only taken if the query log is on
 
-    public DNSRequestHandler(DatagramSocket serverSocket, Map<String, String> dnsMap, InetAddress dnsServerAddress,
-                             byte[] requestData, InetAddress clientAddress, int clientPort, int debugLevel) {
-        this.serverSocket = serverSocket;
-        this.dnsMap = dnsMap;
-        this.dnsServerAddress = dnsServerAddress;
+    // The parsed question, filled in by parse()
+    private final DNSQuestion question = new DNSQuestion();
+    private boolean parsed;
+    private String domainName;
+
+    public DNSRequestHandler(RelayContext context, ResponseSender sender, byte[] requestData, InetSocketAddress client) {
+        this.context = context;
+        this.sender = sender;
+        this.upstream = context.getUpstream();
+        this.cache = context.getCache();
+        this.upstreamPermits = context.getUpstreamPermits();
         this.requestData = requestData;
-        this.clientAddress = clientAddress;
-        this.clientPort = clientPort;
-        this.debugLevel = debugLevel;
+        this.client = client;
+        this.debugLevel = context.getDebugLevel();
+        this.startNanos = context.getQueryLog() != null ? System.nanoTime() : 0;
     }
 
     @Override
     public void run() {
         try {
-            handleRequest();
+            if (!parsed && tryAnswerLocally()) {
+                return;
+            }
+            forwardRequest();
         } catch (Exception e) {
             System.err.println("Error handling DNS request: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-   
-   private void handleRequest() throws IOException {
-       // Validate that the packet is long enough for a DNS header
-       if (requestData.length < 12) {
-           return; // Not a valid DNS query
-       }
-       // Parse header fields from the request
-       int transactionID = ((requestData[0] & 0xFF) << 8) | (requestData[1] & 0xFF);
-       // Check if this is a query (QR bit == 0 in flags)
-       boolean isQuery = (requestData[2] & 0x80) == 0;
-       if (!isQuery) {
-           // If it's not a DNS query (maybe a response), ignore it.
-           return;
+   /**
+    * Answers a query from the local database if possible: NXDOMAIN for blocked domains; for local names
+    * (class IN) their records of the query type or the CNAME chain of an alias. A type the name has no
+    * records of is forwarded, or answered with NODATA if the relay runs with -localnodata. The response is
+    * encoded into out without allocating, so event loops call this inline on the receive buffer.
+    * @param context The shared relay state.
+    * @param question The parsed query.
+    * @param out The buffer to encode the response into.
+    * @param limit The largest response the client accepts; larger local answers are sent truncated.
+    * @param client The client, for debug output.
+    * @return The length of the response in out, or -1 if the local database cannot answer the query.
+    */
+   static int answerLocally(RelayContext context, DNSQuestion question, byte[] out, int limit,
+                            InetSocketAddress client) {
+       int debugLevel = context.getDebugLevel();
+       if (debugLevel >= 1) {
+           System.out.println("Received query from " + client.getAddress().getHostAddress() + ":" + client.getPort()
+                   + " for domain: " + question.getDomainName() + " (Type " + question.getQueryType() + ")");
        }
-       // Number of questions (QDCOUNT)
-       int qdCount = ((requestData[4] & 0xFF) << 8) | (requestData[5] & 0xFF);
-       if (qdCount == 0) {
-           // No question present in the query; nothing to do.
-           return;
+
+       int udpSize = context.getEdnsUdpSize();
+       if (question.getEdnsVersion() > 0) {
+           // Only EDNS version 0 exists; anything newer gets BADVERS (RFC 6891).
+           context.getMetrics().malformed.increment();
+           return DNSResponseWriter.writeError(question, out, 16, udpSize);
        }
 
-       // Parse the Question section (assuming QDCOUNT == 1)
-       int index = 12;
-       StringBuilder domainNameBuilder = new StringBuilder();
-       while (index < requestData.length) {
-           int len = requestData[index] & 0xFF;
-           if (len == 0) {
-               // End of domain name
-               index++;
-               break;
+       // Determine how to handle the query based on local database; one snapshot serves the whole query.
+       long start = System.nanoTime();
+       LocalDatabase.Snapshot table = context.getLocalRecords().snapshot();
+       long entry = table.lookup(question.getData(), question.getNameStart(), question.getNameEnd(), question.getNameHash());
+       if (entry < 0) {
+           return -1;
+       }
+       if (table.isBlocked(entry)) {
+           // Case 1: Domain is blocked (0.0.0.0 in local DB) -> return NXDOMAIN
+           if (debugLevel >= 1) {
+               System.out.println(" -> Domain is blocked in local database. Returning NXDOMAIN.");
+           }
+           context.getMetrics().blocked.increment();
+           if (context.getQueryLog() != null) {
+               context.getQueryLog().log(client, question, QueryLog.PATH_BLOCKED, 3, 0);
            }
-           if (index + len >= requestData.length) {
-               // Malformed domain name (length byte beyond packet)
-               return;
+           int length = DNSResponseWriter.writeError(question, out, 3, udpSize);
+           context.getMetrics().blockedLatency.record((System.nanoTime() - start) / 1000);
+           return length;
+       }
+       if (question.getQueryClass() == LocalRecordTable.CLASS_IN && !context.isLocalNoData()
+               && table.getAnswerType(entry) != LocalRecordTable.TYPE_CNAME
+               && table.countAnswers(entry, question.getQueryType()) == 0) {
+           return -1; // e.g. MX or TXT for a name with only addresses: the upstream knows those records
+       }
+       if (question.getQueryClass() == LocalRecordTable.CLASS_IN) {
+           // Case 2: Domain found in local DB: its records of the requested type, an alias, or NODATA.
+           if (debugLevel >= 1) {
+               System.out.println(" -> Domain found in local database. Returning: " + table.formatAnswer(entry));
            }
-           if (domainNameBuilder.length() > 0) {
-               domainNameBuilder.append('.');
+           context.getMetrics().localHits.increment();
+           int length = DNSResponseWriter.writeLocalAnswer(question, out, table, entry, udpSize, limit);
+           if (context.getQueryLog() != null) {
+               context.getQueryLog().log(client, question, QueryLog.PATH_LOCAL, out[3] & 0x0F, 0);
            }
-           String label = new String(requestData, index + 1, len);
-           domainNameBuilder.append(label);
-           index += len + 1;
+           context.getMetrics().localLatency.record((System.nanoTime() - start) / 1000);
+           return length;
        }
-       // Ensure there are enough bytes for QTYPE and QCLASS after the name.
-       if (index + 4 > requestData.length) {
-           return;
+       return -1;
+   }
+
+   /**
+    * Encodes the answer to a query that is rate limited or shed, according to the overload policy:
+    * REFUSED, or an empty truncated response so that legitimate clients retry over TCP.
+    * @param context The shared relay state.
+    * @param question The parsed query.
+    * @param out The buffer to encode the response into.
+    * @param stream true if the query came over TCP.
+    * @return The length of the response in out, or -1 if the query should be dropped.
+    */
+   static int writeOverloadResponse(RelayContext context, DNSQuestion question, byte[] out, boolean stream) {
+       // Over TCP every policy refuses: the client is real, and a dropped query would stall its connection.
+       if (!stream && context.getOverloadPolicy() == RelayContext.OVERLOAD_DROP) {
+           return -1;
+       }
+       if (!stream && context.getOverloadPolicy() == RelayContext.OVERLOAD_TRUNCATE) {
+           return DNSResponseWriter.writeTruncated(question, out, context.getEdnsUdpSize());
        }
-       String domainName = domainNameBuilder.toString().toLowerCase();
-       int queryType = ((requestData[index] & 0xFF) << 8) | (requestData[index + 1] & 0xFF);
-       int queryClass = ((requestData[index + 2] & 0xFF) << 8) | (requestData[index + 3] & 0xFF);
-       index += 4;
+       return DNSResponseWriter.writeError(question, out, 5, context.getEdnsUdpSize());
+   }
 
+   /**
+    * Answers a query the relay has no capacity for (see writeOverloadResponse), instead of running it.
+    * The caller counts the reason.
+    */
+   void shed() throws IOException {
+       if (!parsed && !parse()) {
+           return; // Not a valid DNS query
+       }
        if (debugLevel >= 1) {
-           System.out.println("Received query from " + clientAddress.getHostAddress() + ":" + clientPort
-                   + " for domain: " + domainName + " (Type " + queryType + ")");
+           System.out.println(" -> Relay overloaded; shedding query for " + getDomainName() + " from " + client);
        }
-
-       // Determine how to handle the query based on local database
-       String mappedIP = dnsMap.get(domainName);
-       if (mappedIP != null && mappedIP.equals("0.0.0.0")) {
-           // Case 1: Domain is blocked (0.0.0.0 in local DB) -> return NXDOMAIN
-           if (debugLevel >= 1) {
-               System.out.println(" -> Domain is blocked in local database. Returning NXDOMAIN.");
-           }
-           byte[] response = buildResponse(queryType, queryClass, transactionID, false, 3, mappedIP);
-           DatagramPacket responsePacket = new DatagramPacket(response, response.length, clientAddress, clientPort);
-           serverSocket.send(responsePacket);
-       } else if (mappedIP != null && queryType == 1) {
-           // Case 2: Domain found with a valid IP in local DB and query asks for A record.
-           if (debugLevel >= 1) {
-               System.out.println(" -> Domain found in local database. Returning IP: " + mappedIP);
+       ByteBuffer buffer = context.getResponseBuffers(false).acquire();
+       try {
+           byte[] out = buffer.array();
+           int length = writeOverloadResponse(context, question, out, sender.isStream());
+           if (length > 0) {
+               sender.send(out, length, client);
            }
-           byte[] response = buildResponse(queryType, queryClass, transactionID, true, 0, mappedIP);
-           DatagramPacket responsePacket = new DatagramPacket(response, response.length, clientAddress, clientPort);
-           serverSocket.send(responsePacket);
-       } else {
-           // Case 3: No local record (or not applicable for this query type) -> forward to external DNS server
-           if (debugLevel >= 1) {
-               System.out.println(" -> Domain not in local database or not an A query. Forwarding to DNS server "
-                       + dnsServerAddress.getHostAddress());
+       } finally {
+           context.getResponseBuffers(false).release(buffer);
+       }
+   }
+
+   /**
+    * Parses the request.
+    * @return false if the packet is not a well-formed query and should be dropped.
+    */
+   boolean parse() {
+       parsed = question.parse(requestData, requestData.length);
+       return parsed;
+   }
+
+   /**
+    * Parses the query and answers it if that can be done without contacting the upstream DNS server:
+    * blocked domains, local records and cached responses. Malformed packets are dropped.
+    * This never blocks, so event loops may call it inline.
+    * @return true if the request has been fully handled, false if it still has to be forwarded (by run()).
+    */
+   boolean tryAnswerLocally() throws IOException {
+       if (!parse()) {
+           context.getMetrics().malformed.increment();
+           return true; // Not a valid DNS query
+       }
+       // Local answers over TCP are not bound by a UDP size, so they get a buffer as large as a TCP message.
+       ByteBufferPool buffers = context.getResponseBuffers(sender.isStream());
+       ByteBuffer buffer = buffers.acquire();
+       try {
+           byte[] out = buffer.array();
+           int limit = sender.isStream() ? out.length : question.getUdpLimit(context.getEdnsUdpSize());
+           int length = answerLocally(context, question, out, limit, client);
+           if (length > 0) {
+               sender.send(out, length, client);
+               return true;
            }
-           byte[] dnsResponse = forwardQueryToRealDNS(requestData);
-           if (dnsResponse == null) {
-               // No response from DNS server (timeout or error) -> return SERVFAIL to client
-               System.err.println("【SERVFAIL】There is no response/error from the upstream DNS, and SERVFAIL has been returned " + clientAddress + ":" + clientPort);
+       } finally {
+           buffers.release(buffer);
+       }
+       return tryAnswerFromCache();
+   }
+
+   /**
+    * Case 3: No local record (or not applicable for this query type) -> answer from cache if possible.
+    * @return true if a cached response was sent.
+    */
+   boolean tryAnswerFromCache() throws IOException {
+       if (cache != null) {
+           long start = System.nanoTime();
+           byte[] cachedResponse = cache.get(getDomainName(), question.getQueryType(), question.getQueryClass(),
+                   DNSCache.flagsOf(question), requestData);
+           if (cachedResponse != null) {
                if (debugLevel >= 1) {
-                   System.out.println(" -> No response from upstream DNS server; returning SERVFAIL.");
+                   System.out.println(" -> Answer found in response cache.");
                }
-               byte[] servfailResponse = buildResponse(queryType, queryClass, transactionID, false, 2, null);
-               DatagramPacket responsePacket = new DatagramPacket(servfailResponse, servfailResponse.length, clientAddress, clientPort);
-               serverSocket.send(responsePacket);
-           } else {
-               // Got a reply from real DNS server -> forward it directly to the client
-               if (debugLevel >= 2) {
-                   int anCount = ((dnsResponse[6] & 0xFF) << 8) | (dnsResponse[7] & 0xFF);
-                   int rcode = dnsResponse[3] & 0x0F;
-                   System.out.println(" <- Response from DNS server: Answers=" + anCount + ", RCODE=" + rcode);
-               }
-               DatagramPacket responsePacket = new DatagramPacket(dnsResponse, dnsResponse.length, clientAddress, clientPort);
-               serverSocket.send(responsePacket);
+               context.getMetrics().cacheHits.increment();
+               context.getMetrics().cacheLatency.record((System.nanoTime() - start) / 1000);
+               sendResponse(cachedResponse);
+               logQuery(QueryLog.PATH_CACHE, cachedResponse[3] & 0x0F);
+               return true;
            }
        }
+       return false;
    }
 
    /**
-    * Constructs a DNS response message given the query details and response parameters.
-    * @param queryType The DNS query type (e.g. 1 for A).
-    * @param queryClass The DNS query class (e.g. 1 for IN).
-    * @param transactionID The transaction ID from the query (to echo back in response).
-    * @param haveAnswer True if we include an answer (for local resolution), false if no answers.
-    * @param responseCode The DNS response code (0=NoError, 2=ServFail, 3=NXDomain, etc.).
-    * @param ipAddress The IP address to use in the answer (if haveAnswer is true and responseCode is 0).
-    * @return A byte array representing the complete DNS response packet.
+    * Sends a cached or upstream response, or its truncated form if it is too large for the client's UDP
+    * limit (512 bytes, or the EDNS0 size it advertised).
     */
-   private byte[] buildResponse(int queryType, int queryClass, int transactionID, boolean haveAnswer, int responseCode, String ipAddress) {
+   private void sendResponse(byte[] response) throws IOException {
+       if (sender.isStream() || response.length <= question.getUdpLimit(context.getEdnsUdpSize())) {
+           sender.send(response, response.length, client);
+           return;
+       }
+       if (debugLevel >= 1) {
+           System.out.println(" -> Response of " + response.length + " bytes is too large for UDP; sending TC=1.");
+       }
+       context.getMetrics().truncated.increment();
+       ByteBuffer buffer = context.getResponseBuffers(false).acquire();
        try {
-           ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-           DataOutputStream dataOut = new DataOutputStream(byteStream);
-
-           // Write DNS Header
-           dataOut.writeShort(transactionID); // Transaction ID
-           // Flags (16 bits)
-           boolean rd = (requestData[2] & 0x01) != 0; // Recursion Desired from query
-           int flags1 = 0;
-           flags1 |= 0x80; // QR = 1 (response)
-           if (responseCode == 0 || responseCode == 3) {
-               flags1 |= 0x04; // AA = 1 for local answers and NXDOMAIN (authoritative response)
-           }
-           if (rd) {
-               flags1 |= 0x01; // RD (copied from request)
+           byte[] out = buffer.array();
+           int length = DNSResponseWriter.writeTruncated(question, out, response, context.getEdnsUdpSize());
+           sender.send(out, length, client);
+       } finally {
+           context.getResponseBuffers(false).release(buffer);
+       }
+   }
+
+   private void logQuery(int path, int rcode) {
+       QueryLog queryLog = context.getQueryLog();
+       if (queryLog != null) {
+           queryLog.log(client, question, path, rcode, (System.nanoTime() - startNanos) / 1000);
+       }
+   }
+
+   private String getDomainName() {
+       if (domainName == null) {
+           domainName = question.getDomainName();
+       }
+       return domainName;
+   }
+
+   /**
+    * Forwards a parsed query to the upstream DNS server and relays the answer, or SERVFAIL, to the client.
+    * This blocks until the upstream answers or times out.
+    */
+   private void forwardRequest() throws IOException {
+       long start = System.nanoTime();
+       RelayMetrics metrics = context.getMetrics();
+       metrics.forwarded.increment();
+       if (debugLevel >= 1) {
+           System.out.println(" -> Domain not in local database or not an A query. Forwarding to DNS servers "
+                   + upstream);
+       }
+       byte[] dnsResponse;
+       if (upstreamPermits == null) {
+           dnsResponse = forwardQueryToRealDNS(requestData);
+       } else if (upstreamPermits.tryAcquire()) {
+           try {
+               dnsResponse = forwardQueryToRealDNS(requestData);
+           } finally {
+               upstreamPermits.release();
            }
-           dataOut.writeByte(flags1);
-           int flags2 = 0;
-           flags2 |= 0x80;            // RA = 1 (recursion is available)
-           flags2 |= (responseCode & 0x0F); // RCODE
-           dataOut.writeByte(flags2);
-
-           dataOut.writeShort(1);    // QDCOUNT = 1 (one question)
-           if (haveAnswer && responseCode == 0) {
-               dataOut.writeShort(1); // ANCOUNT = 1 (one answer record)
-           } else {
-               dataOut.writeShort(0); // ANCOUNT = 0
+       } else {
+           // Too many queries already waiting on the upstream: fail fast instead of piling up more.
+           if (debugLevel >= 1) {
+               System.out.println(" -> Upstream in-flight limit reached.");
            }
-           dataOut.writeShort(0);    // NSCOUNT = 0 (no authority records)
-           dataOut.writeShort(0);    // ARCOUNT = 0 (no additional records)
-
-           // Question Section: copy directly from the request (name, type, class)
-           // Find the length of the question section in the request data.
-           int qStart = 12;
-           while (qStart < requestData.length && (requestData[qStart] & 0xFF) != 0) {
-               qStart += (requestData[qStart] & 0xFF) + 1;
+           metrics.upstreamRejected.increment();
+           dnsResponse = null;
+       }
+       if (dnsResponse == null) {
+           // No response from DNS server (timeout or error) -> return SERVFAIL to client
+           System.err.println("【SERVFAIL】There is no response/error from the upstream DNS, and SERVFAIL has been returned " + client);
+           if (debugLevel >= 1) {
+               System.out.println(" -> No response from upstream DNS server; returning SERVFAIL.");
            }
-           if (qStart >= requestData.length) {
-               // Malformed question; return current bytes (should not happen if input is valid).
-               return byteStream.toByteArray();
+           ByteBuffer buffer = context.getResponseBuffers(false).acquire();
+           try {
+               byte[] out = buffer.array();
+               int length = DNSResponseWriter.writeError(question, out, 2, context.getEdnsUdpSize());
+               sender.send(out, length, client);
+           } finally {
+               context.getResponseBuffers(false).release(buffer);
            }
-           // qStart now points at the 0 terminator of the QNAME.
-           // Question section length = (qStart - 12 + 1) + 4 (for QTYPE and QCLASS)
-           int questionLength = (qStart - 12 + 1) + 4;
-           dataOut.write(requestData, 12, questionLength);
-
-           // Answer Section (only if we have a local answer to add)
-           if (haveAnswer && responseCode == 0 && ipAddress != null) {
-               // Name: pointer to the query name at offset 0x0C
-               dataOut.writeShort(0xC00C);
-               // Write the resource record fields: Type, Class, TTL, RDLENGTH, RDATA
-               dataOut.writeShort(queryType);   // TYPE (e.g. 1 for A)
-               dataOut.writeShort(queryClass);  // CLASS (e.g. 1 for IN)
-               dataOut.writeInt(3600);          // TTL (in seconds)
-               byte[] addrBytes = InetAddress.getByName(ipAddress).getAddress();
-               dataOut.writeShort(addrBytes.length); // RDLENGTH (should be 4 for IPv4)
-               dataOut.write(addrBytes);             // RDATA (the IP address bytes)
+           metrics.servfails.increment();
+           logQuery(QueryLog.PATH_FORWARDED, 2);
+       } else {
+           // Got a reply from real DNS server -> remember it and forward it directly to the client
+           if (cache != null) {
+               cache.put(getDomainName(), question.getQueryType(), question.getQueryClass(), DNSCache.flagsOf(question),
+                       dnsResponse);
            }
-
-           dataOut.flush();
-           return byteStream.toByteArray();
-       } catch (IOException e) {
-           // If an error occurs during message construction, print error and return empty array.
-           if (debugLevel >= 1) {
-               System.err.println("Error building DNS response: " + e.getMessage());
+           if (debugLevel >= 2) {
+               int anCount = ((dnsResponse[6] & 0xFF) << 8) | (dnsResponse[7] & 0xFF);
+               int rcode = dnsResponse[3] & 0x0F;
+               System.out.println(" <- Response from DNS server: Answers=" + anCount + ", RCODE=" + rcode);
            }
-           return new byte[0];
+           sendResponse(dnsResponse);
+           logQuery(QueryLog.PATH_FORWARDED, dnsResponse[3] & 0x0F);
        }
+       metrics.forwardLatency.record((System.nanoTime() - start) / 1000);
    }
 
    /**
-    * Forwards the DNS query to the real DNS server via UDP and waits for the response.
+    * Forwards the DNS query to the real DNS servers through the shared upstream pool and waits for the response.
     * @param query The DNS query packet bytes from the client.
     * @return The DNS response packet bytes from the real DNS server, or null if no response was received.
     */
    private byte[] forwardQueryToRealDNS(byte[] query) {
-       try (DatagramSocket dnsSocket = new DatagramSocket(null)){
-           dnsSocket.bind(new InetSocketAddress("0.0.0.0", 0));
-           if (debugLevel >= 1) {
-               System.out.println("The local port of the upstream socket:" + dnsSocket.getLocalPort());
-           }
-           dnsSocket.setSoTimeout(5000); // Timeout after 5 seconds if no response
-           DatagramPacket dnsReqPacket = new DatagramPacket(query, query.length, dnsServerAddress, 53);
-           dnsSocket.send(dnsReqPacket);
-
-           byte[] buffer = new byte[512];
-           DatagramPacket dnsRespPacket = new DatagramPacket(buffer, buffer.length);
-
-           dnsSocket.receive(dnsRespPacket);
+       RelayMetrics metrics = context.getMetrics();
+       long start = System.nanoTime();
+       try {
+           byte[] response = upstream.query(query).get();
+           metrics.upstreamRtt.record((System.nanoTime() - start) / 1000);
+           metrics.upstreamAnswers.increment();
 
            // 日志输出上游响应
            if (debugLevel >= 1) {
-               int rcode = buffer[3] & 0x0F;
+               int rcode = response[3] & 0x0F;
                System.out.println("THE UPSTREAM DNS RESPONDS TO RCODE: " + rcode + (rcode == 3 ? " (NXDOMAIN)" : (rcode == 0 ? " (NOERROR)" : "")));
            }
-           return Arrays.copyOfRange(dnsRespPacket.getData(), dnsRespPacket.getOffset(),
-                   dnsRespPacket.getOffset() + dnsRespPacket.getLength());
-       } catch (IOException e) {
-           System.err.println("Error forwarding query to DNS server: " + e.getMessage());
-           e.printStackTrace();
+           return response;
+       } catch (ExecutionException e) {
+           if (e.getCause() instanceof SocketTimeoutException) {
+               metrics.upstreamTimeouts.increment();
+           } else {
+               metrics.upstreamErrors.increment();
+           }
+           System.err.println("Error forwarding query to DNS server: " + e.getCause().getMessage());
+           return null;
+       } catch (InterruptedException e) {
+           Thread.currentThread().interrupt();
            return null;
        }
    }
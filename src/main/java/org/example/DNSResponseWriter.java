@@ -0,0 +1,145 @@
+package org.example;
+
+/**
+ * Writes DNS responses for locally answered queries straight into a caller-supplied buffer.
+ * Queries that carry an EDNS0 OPT record get one back (RFC 6891), advertising the relay's UDP size.
+ */
+final class DNSResponseWriter {
+    private static final int MAX_CNAME_CHAIN = 8; // aliases followed locally before answering with the chain so far
+
+    private DNSResponseWriter() {
+    }
+
+    /**
+     * Writes the response header and echoes the question section of the query.
+     * @param question The parsed query.
+     * @param out The output buffer; it must hold at least the question plus the header.
+     * @param responseCode The DNS response code (0=NoError, 2=ServFail, 3=NXDomain, etc.).
+     * @param anCount The number of answer records the caller is going to append.
+     * @return The offset just past the question section, where answer records go.
+     */
+    static int writeHeader(DNSQuestion question, byte[] out, int responseCode, int anCount) {
+        byte[] request = question.getData();
+        DNSPacketUtil.writeU16(out, 0, question.getTransactionID());
+        int flags1 = 0x80; // QR = 1 (response)
+        if (responseCode == 0 || responseCode == 3) {
+            flags1 |= 0x04; // AA = 1 for local answers and NXDOMAIN (authoritative response)
+        }
+        if (question.isRecursionDesired()) {
+            flags1 |= 0x01; // RD (copied from request)
+        }
+        out[2] = (byte) flags1;
+        out[3] = (byte) (0x80 | (responseCode & 0x0F)); // RA = 1, RCODE
+        DNSPacketUtil.writeU16(out, 4, 1);       // QDCOUNT = 1 (one question)
+        DNSPacketUtil.writeU16(out, 6, anCount); // ANCOUNT
+        DNSPacketUtil.writeU16(out, 8, 0);       // NSCOUNT = 0 (no authority records)
+        DNSPacketUtil.writeU16(out, 10, 0);      // ARCOUNT = 0 (no additional records)
+        // Question Section: copy directly from the request (name, type, class)
+        int questionLength = question.getQuestionEnd() - DNSPacketUtil.HEADER_LENGTH;
+        System.arraycopy(request, DNSPacketUtil.HEADER_LENGTH, out, DNSPacketUtil.HEADER_LENGTH, questionLength);
+        return DNSPacketUtil.HEADER_LENGTH + questionLength;
+    }
+
+    /**
+     * Appends an OPT record if the query had one, and counts it in ARCOUNT.
+     * @param offset The end of the response so far.
+     * @param responseCode The full response code; its upper 8 bits go into the OPT record (e.g. BADVERS).
+     * @param udpSize The UDP payload size the relay advertises.
+     * @return The new end of the response.
+     */
+    static int writeOpt(DNSQuestion question, byte[] out, int offset, int responseCode, int udpSize) {
+        if (!question.hasEdns()) {
+            return offset;
+        }
+        out[offset] = 0;                                             // root name
+        DNSPacketUtil.writeU16(out, offset + 1, DNSPacketUtil.TYPE_OPT);
+        DNSPacketUtil.writeU16(out, offset + 3, udpSize);            // CLASS: UDP payload size
+        out[offset + 5] = (byte) (responseCode >>> 4);               // extended RCODE
+        out[offset + 6] = 0;                                         // version 0
+        out[offset + 7] = (byte) (question.isDnssecOk() ? 0x80 : 0); // DO echoed (RFC 3225)
+        out[offset + 8] = 0;
+        DNSPacketUtil.writeU16(out, offset + 9, 0);                  // RDLENGTH: no options
+        DNSPacketUtil.writeU16(out, 10, DNSPacketUtil.readU16(out, 10) + 1);
+        return offset + DNSPacketUtil.OPT_RECORD_LENGTH;
+    }
+
+    /**
+     * Writes a complete response with no answer records (NXDOMAIN, SERVFAIL, BADVERS, ...).
+     * @param udpSize The UDP payload size the relay advertises in the OPT record.
+     * @return The length of the response.
+     */
+    static int writeError(DNSQuestion question, byte[] out, int responseCode, int udpSize) {
+        int offset = writeHeader(question, out, responseCode, 0);
+        return writeOpt(question, out, offset, responseCode, udpSize);
+    }
+
+    /**
+     * Writes a complete response from the local database: the entry's records of the query type, in
+     * round-robin order, or none (NODATA) if the name has no such records. An alias is answered with its
+     * CNAME record followed by the answer for the target, as long as the target is local as well; if it
+     * is not, the chain so far is the answer and the client's resolver follows it. A blocked target makes
+     * the response NXDOMAIN. Answers too large for the limit are sent empty with TC set.
+     * @param snapshot The local database snapshot the entry was looked up in.
+     * @param entry The entry handle returned by the snapshot's lookup().
+     * @param udpSize The UDP payload size the relay advertises in the OPT record.
+     * @param limit The largest response the client accepts (its UDP limit, or the buffer size over TCP).
+     * @return The length of the response.
+     */
+    static int writeLocalAnswer(DNSQuestion question, byte[] out, LocalDatabase.Snapshot snapshot, long entry,
+                                int udpSize, int limit) {
+        int queryType = question.getQueryType();
+        int rotation = question.getTransactionID(); // varies per query, so the answer order does too
+        int end = Math.min(limit, out.length) - (question.hasEdns() ? DNSPacketUtil.OPT_RECORD_LENGTH : 0);
+        int offset = writeHeader(question, out, 0, 0);
+        int owner = DNSPacketUtil.HEADER_LENGTH; // the query name
+        for (int chain = 0; chain < MAX_CNAME_CHAIN && queryType != LocalRecordTable.TYPE_CNAME
+                && queryType != LocalRecordTable.TYPE_ANY
+                && snapshot.getAnswerType(entry) == LocalRecordTable.TYPE_CNAME; chain++) {
+            int next = snapshot.writeAnswers(entry, LocalRecordTable.TYPE_CNAME, 0, out, offset, owner, end);
+            if (next < 0) {
+                return writeTruncated(question, out, udpSize);
+            }
+            // The target name is the RDATA just written: look it up in place, and point to it as the owner.
+            owner = offset + 12;
+            offset = next;
+            entry = snapshot.lookup(out, owner, next, LocalRecordTable.hashName(out, owner, next));
+            if (entry < 0) {
+                return writeOpt(question, out, offset, 0, udpSize);
+            }
+            if (snapshot.isBlocked(entry)) {
+                out[3] = (byte) (out[3] | 3); // NXDOMAIN, like the blocked name itself
+                return writeOpt(question, out, offset, 3, udpSize);
+            }
+        }
+        offset = snapshot.writeAnswers(entry, queryType, rotation, out, offset, owner, end);
+        if (offset < 0) {
+            return writeTruncated(question, out, udpSize);
+        }
+        return writeOpt(question, out, offset, 0, udpSize);
+    }
+
+    /**
+     * Writes the truncated form of a response that is too large for the client's UDP limit: its header with
+     * TC set and no records, so the client retries over TCP (RFC 7766).
+     * @param response The full response.
+     * @param udpSize The UDP payload size the relay advertises in the OPT record.
+     * @return The length of the truncated response.
+     */
+    static int writeTruncated(DNSQuestion question, byte[] out, byte[] response, int udpSize) {
+        int offset = writeHeader(question, out, response[3] & 0x0F, 0);
+        out[2] = (byte) (response[2] | 0x02); // the upstream's flags, plus TC
+        out[3] = response[3];
+        return writeOpt(question, out, offset, 0, udpSize);
+    }
+
+    /**
+     * Writes an empty response with TC set, for a query the relay will not answer over UDP right now.
+     * @param udpSize The UDP payload size the relay advertises in the OPT record.
+     * @return The length of the response.
+     */
+    static int writeTruncated(DNSQuestion question, byte[] out, int udpSize) {
+        int offset = writeHeader(question, out, 0, 0);
+        out[2] = (byte) ((out[2] & ~0x04) | 0x02); // TC, and not authoritative
+        return writeOpt(question, out, offset, 0, udpSize);
+    }
+}
@@ -0,0 +1,131 @@
+package org.example;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * DatabaseWatcher triggers LocalDatabase updates: it watches the data file and its diff file for changes,
+ * and reads admin commands from the console. Editors often write a file in several steps, so changes are
+ * only acted on once the directory has been quiet for a short while.
+ *
+ * <pre>
+ * console:  reload                  rebuild the table from the data file
+ *           add 1.2.3.4 example.com add or replace a record (kept until restart); an optional TTL
+ *                                   follows, and "add cname alias target" adds an alias
+ *           allow example.com       add an allow-list entry
+ *           remove example.com      hide a record of the data file
+ * </pre>
+ */
+class DatabaseWatcher {
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private final LocalDatabase database;
+    private final int debugLevel;
+
+    /**
+     * @param database The database to update.
+     * @param debugLevel The debug level (0, 1 or 2).
+     */
+    public DatabaseWatcher(LocalDatabase database, int debugLevel) {
+        this.database = database;
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * Starts watching the data file (if it lives in the file system) and reading console commands,
+     * each on its own daemon thread.
+     */
+    public void start() {
+        File dataFile = database.getDataFile();
+        if (dataFile != null) {
+            try {
+                WatchService watchService = FileSystems.getDefault().newWatchService();
+                Path directory = dataFile.getAbsoluteFile().getParentFile().toPath();
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                startDaemon(() -> watchLoop(watchService, dataFile.getName(),
+                        database.getDiffFile().getName()), "dns-database-watcher");
+                if (debugLevel > 0) {
+                    System.out.println("Watching " + dataFile.getAbsolutePath() + " for changes");
+                }
+            } catch (IOException e) {
+                System.err.println("Cannot watch data file, changes need a restart or a reload command: "
+                        + e.getMessage());
+            }
+        }
+        startDaemon(this::consoleLoop, "dns-database-console");
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watchLoop(WatchService watchService, String dataFileName, String diffFileName) {
+        try {
+            while (true) {
+                // Collect events until the directory has been quiet for DEBOUNCE_MILLIS.
+                boolean dataChanged = false;
+                boolean diffChanged = false;
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        String changed = String.valueOf(event.context());
+                        dataChanged |= changed.equals(dataFileName);
+                        diffChanged |= changed.equals(diffFileName);
+                    }
+                    key.reset();
+                    key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (dataChanged) {
+                    if (debugLevel > 0) {
+                        System.out.println("Data file changed, reloading");
+                    }
+                    database.reload();
+                }
+                if (diffChanged) {
+                    if (debugLevel > 0) {
+                        System.out.println("Diff file changed, rebuilding overlay");
+                    }
+                    database.reloadDiff();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shutting down
+        }
+    }
+
+    private void consoleLoop() {
+        try (BufferedReader console = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = console.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                String command = parts[0].toLowerCase();
+                boolean valid;
+                if (command.isEmpty()) {
+                    continue;
+                } else if (command.equals("reload") && parts.length == 1) {
+                    database.reload();
+                    valid = true;
+                } else if (command.equals("add") && parts.length >= 3) {
+                    valid = database.apply("+ " + String.join(" ", Arrays.copyOfRange(parts, 1, parts.length)));
+                } else if (command.equals("allow") && parts.length == 2) {
+                    valid = database.apply("+ allow " + parts[1]);
+                } else if (command.equals("remove") && parts.length == 2) {
+                    valid = database.apply("- " + parts[1]);
+                } else {
+                    valid = false;
+                }
+                if (!valid) {
+                    System.err.println("Unknown command: " + line
+                            + " (expected reload, add <ip> <domain> [ttl], add cname <alias> <target> [ttl], allow <domain> or remove <domain>)");
+                }
+            }
+        } catch (IOException e) {
+            // The console was closed; keep running without it.
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.example;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * LatencyHistogram is a fixed-size, lock-free log-linear histogram in the style of HdrHistogram: values
+ * below 64 are counted exactly, larger values in 32 linear sub-buckets per power of two, so every
+ * recorded value is known to within about 3%. Every bucket is a LongAdder, so event loops and handler
+ * threads that record at the same moment add to their own cells instead of CASing one shared array
+ * slot; any number of threads may record concurrently while another reads percentiles.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;        // linear buckets per power of two
+    private static final int EXACT_VALUES = 2 * SUB_BUCKETS;            // values below this are exact
+    private static final int BUCKET_COUNT = EXACT_VALUES + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKET_COUNT];
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records one value.
+     * @param value The value, e.g. a latency in microseconds; negative values are counted as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[bucketIndex(value)].increment();
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The highest value of the bucket holding that percentile, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i].sum();
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @param bound The inclusive upper bound.
+     * @return The number of recorded values that are at most bound (rounded to bucket resolution).
+     */
+    public long getCountAtOrBelow(long bound) {
+        if (bound < 0) {
+            return 0;
+        }
+        int last = bucketIndex(bound);
+        long seen = 0;
+        for (int i = 0; i <= last; i++) {
+            seen += counts[i].sum();
+        }
+        return seen;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < EXACT_VALUES) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // >= 1
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;              // 0 .. SUB_BUCKETS - 1
+        return EXACT_VALUES + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < EXACT_VALUES) {
+            return index;
+        }
+        int shift = (index - EXACT_VALUES) / SUB_BUCKETS + 1;
+        long subBucket = (index - EXACT_VALUES) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,525 @@
+package org.example;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * LocalDatabase publishes the local DNS records to request threads as an immutable Snapshot behind an
+ * atomic reference. Full reloads and diffs are built on a single background thread and swapped in
+ * whole, so a query never blocks on a reload and never sees a half-built table.
+ *
+ * <p>A snapshot is a base table, built from the data file, plus a small overlay table built from diff
+ * operations (the "<data file>.diff" file and console commands). Editing a few lines of a huge blocklist
+ * only rebuilds the overlay; the overlay is kept across full reloads until the diff file changes.
+ * Console operations are collected into one rule per name, which replaces the diff file's rule for that
+ * name. Each operation only rebuilds a third, recent table holding the names changed since the overlay
+ * was last rebuilt; past FOLD_THRESHOLD names the recent table is folded into the overlay, so an
+ * operation costs O(FOLD_THRESHOLD) plus the overlay rebuild amortized over that many operations.
+ *
+ * <pre>
+ * data file: 1.2.3.4 www.example.com [ttl]        an A record (AAAA for an IPv6 address); repeat for more
+ *            0.0.0.0 ads.example.com              block the name (NXDOMAIN)
+ *            cname www.example.org www.example.com [ttl]  an alias
+ *            allow ok.ads.example.com             never block the name
+ *
+ * diff file:  + 1.2.3.4 www.example.com [ttl]  replace the name's records in the base table (repeat for more)
+ *             + cname alias target [ttl]   same, with an alias
+ *             + allow ads.example.com      add an allow-list entry
+ *             - old.example.com            remove the name (and its allow flag) from the base table
+ * </pre>
+ */
+class LocalDatabase {
+    static final long OVERLAY_BIT = 1L << 32; // marks a lookup handle that points into the overlay table
+    static final long RECENT_BIT = 1L << 33;  // marks a lookup handle that points into the recent table
+    static final int FOLD_THRESHOLD = 256;    // recent names that trigger a rebuild of the overlay
+
+    private final String dataFileName;
+    private final boolean offHeap;
+    private final int debugLevel;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+    // Every reload and diff runs on this thread, so the fields below need no locking.
+    private final ExecutorService updater = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "dns-database-updater");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private LocalRecordTable.Builder fileDiff = new LocalRecordTable.Builder();
+    private final LocalRecordTable.Builder consoleDiff = new LocalRecordTable.Builder(); // one rule per name
+    private LocalRecordTable.Builder recentNames = new LocalRecordTable.Builder(); // changed since the fold
+
+    private LocalDatabase(String dataFileName, boolean offHeap, int debugLevel) {
+        this.dataFileName = dataFileName;
+        this.offHeap = offHeap;
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * Loads the data file (and its diff file, if any) on the calling thread.
+     * @param dataFileName The data file, looked up in the file system, then in src/main/resources/, then
+     *                     on the class path.
+     * @param offHeap Whether to place the tables in direct buffers outside the Java heap.
+     * @param debugLevel The debug level (0, 1 or 2).
+     * @return The database, or null if the data file cannot be read.
+     */
+    public static LocalDatabase load(String dataFileName, boolean offHeap, int debugLevel) {
+        LocalDatabase database = new LocalDatabase(dataFileName, offHeap, debugLevel);
+        LocalRecordTable base = database.readBaseTable();
+        if (base == null) {
+            return null;
+        }
+        database.fileDiff = database.readDiffFile();
+        database.current.set(new Snapshot(base, database.buildOverlay()));
+        return database;
+    }
+
+    /**
+     * @return The current snapshot. A query should use one snapshot from start to finish.
+     */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * @return The data file if it was loaded from the file system (and so can be watched), else null.
+     */
+    public File getDataFile() {
+        File file = resolveDataFile();
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * @return The diff file next to the data file.
+     */
+    public File getDiffFile() {
+        return new File(resolveDataFile().getPath() + ".diff");
+    }
+
+    /**
+     * Rebuilds the base table from the data file in the background. The current snapshot keeps serving
+     * queries until the new one is published; if the file cannot be read the old snapshot stays.
+     * @return A future completed once the reload has finished (or failed).
+     */
+    public Future<?> reload() {
+        return updater.submit(() -> {
+            long start = System.nanoTime();
+            LocalRecordTable base = readBaseTable();
+            if (base == null) {
+                System.err.println("Reload failed, keeping the current local database.");
+                return;
+            }
+            Snapshot snapshot = current.get();
+            current.set(new Snapshot(base, snapshot.overlay, snapshot.recent));
+            if (debugLevel > 0) {
+                System.out.println("Reloaded " + base.size() + " entries from " + dataFileName + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+        });
+    }
+
+    /**
+     * Re-reads the diff file in the background and publishes a snapshot with the new overlay.
+     * @return A future completed once the overlay has been rebuilt.
+     */
+    public Future<?> reloadDiff() {
+        return updater.submit(() -> {
+            fileDiff = readDiffFile();
+            foldOverlay();
+        });
+    }
+
+    /**
+     * Applies one diff operation (a diff file line) in the background. Console operations on a name win
+     * over the diff file's lines for it, and survive reloads until the relay restarts.
+     * @param operation "+ ip domain [ttl]", "+ cname alias target [ttl]", "+ allow domain" or "- domain".
+     * @return false if the operation is malformed; it is then ignored.
+     */
+    public boolean apply(String operation) {
+        if (!applyLine(new LocalRecordTable.Builder(), operation)) {
+            return false;
+        }
+        updater.execute(() -> {
+            applyLine(consoleDiff, operation);
+            applyLine(recentNames, operation);
+            if (recentNames.size() > FOLD_THRESHOLD) {
+                foldOverlay();
+                return;
+            }
+            // Only the names changed since the last fold are rebuilt, with their whole console rule.
+            LocalRecordTable recent = consoleDiff.rulesFor(recentNames).build(false);
+            Snapshot snapshot = current.get();
+            current.set(new Snapshot(snapshot.base, snapshot.overlay, recent));
+            if (debugLevel > 0) {
+                System.out.println("Local database recent overlay now holds " + recent.size() + " entries");
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Rebuilds the overlay from the diff file and all console operations, and empties the recent table.
+     */
+    private void foldOverlay() {
+        LocalRecordTable overlay = buildOverlay();
+        recentNames = new LocalRecordTable.Builder();
+        current.set(new Snapshot(current.get().base, overlay, null));
+        if (debugLevel > 0) {
+            System.out.println("Local database overlay now holds " + (overlay == null ? 0 : overlay.size())
+                    + " entries");
+        }
+    }
+
+    private LocalRecordTable buildOverlay() {
+        if (fileDiff.size() == 0 && consoleDiff.size() == 0) {
+            return null;
+        }
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.putAll(fileDiff);
+        builder.putAll(consoleDiff);
+        return builder.build(false); // diffs are small, keep them on the heap
+    }
+
+    /**
+     * Adds one diff line to an overlay builder.
+     * @return false if the line is malformed.
+     */
+    private static boolean applyLine(LocalRecordTable.Builder builder, String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length == 2 && parts[0].equals("-")) {
+            return builder.remove(parts[1]);
+        }
+        if (parts.length >= 3 && parts[0].equals("+")) {
+            return parts[1].equalsIgnoreCase("allow") ? builder.allow(parts[2]) : addRecord(builder, parts, 1);
+        }
+        return false;
+    }
+
+    /**
+     * Adds an "ip domain [ttl]" or "cname alias target [ttl]" line to a builder.
+     * @param parts The words of the line.
+     * @param first The index of the first word of the record (after a diff line's "+").
+     * @return false if the line is malformed.
+     */
+    private static boolean addRecord(LocalRecordTable.Builder builder, String[] parts, int first) {
+        boolean cname = parts[first].equalsIgnoreCase("cname");
+        int ttlIndex = first + (cname ? 3 : 2);
+        if (parts.length < ttlIndex || parts.length > ttlIndex + 1) {
+            return false;
+        }
+        long ttl = LocalRecordTable.DEFAULT_TTL;
+        if (parts.length > ttlIndex) {
+            try {
+                ttl = Long.parseLong(parts[ttlIndex]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return cname ? builder.cname(parts[first + 1], parts[first + 2], ttl)
+                : builder.add(parts[first], parts[first + 1], ttl);
+    }
+
+    private File resolveDataFile() {
+        File file = new File(dataFileName);
+        if (!file.exists()) {
+            // 如果当前目录找不到，尝试src/main/resources/下找
+            File resource = new File("src/main/resources/" + dataFileName);
+            if (resource.exists()) {
+                return resource;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Reads the data file into a new table. A compiled image (see DNSDatabaseCompiler) is mapped instead
+     * of parsed.
+     * @return The table, or null if the file cannot be read.
+     */
+    private LocalRecordTable readBaseTable() {
+        InputStream is = null;
+        try {
+            File file = resolveDataFile();
+            if (file.exists() && LocalRecordImage.isImage(file)) {
+                LocalRecordTable table = LocalRecordImage.map(file);
+                if (debugLevel > 0) {
+                    System.out.println("Mapped database image: " + file.getAbsolutePath());
+                }
+                return table;
+            }
+            if (file.exists()) {
+                is = new FileInputStream(file);
+                if (debugLevel > 0) {
+                    System.out.println("Loaded data file from file system: " + file.getAbsolutePath());
+                }
+            } else {
+                // 如果文件系统找不到，再尝试用资源加载
+                is = LocalDatabase.class.getClassLoader().getResourceAsStream(dataFileName);
+                if (is != null && debugLevel > 0) {
+                    System.out.println("Loaded data file from resources: " + dataFileName);
+                }
+            }
+        } catch (Exception e) {
+            // Also covers images that fail their header check.
+            System.err.println("Error loading data file: " + dataFileName);
+            e.printStackTrace();
+            return null;
+        }
+        if (is == null) {
+            System.err.println("Failed to load data file: " + dataFileName);
+            return null;
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
+            return parse(br, offHeap, debugLevel);
+        } catch (IOException e) {
+            System.err.println("Failed to read data from: " + dataFileName);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Parses the lines of a data file ("ip domain [ttl]", "cname alias target [ttl]" or "allow domain") into
+     * a table.
+     * @param br The data file.
+     * @param offHeap Whether to place the table in a direct buffer outside the Java heap.
+     * @param debugLevel The debug level; invalid lines are reported when it is above 0.
+     * @return The table.
+     * @throws IOException If the data file cannot be read.
+     */
+    static LocalRecordTable parse(BufferedReader br, boolean offHeap, int debugLevel) throws IOException {
+        LocalRecordTable.Builder tableBuilder = new LocalRecordTable.Builder();
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue; // Skip empty lines or comments in the data file.
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length >= 2) {
+                boolean valid;
+                if (parts[0].equalsIgnoreCase("allow")) {
+                    valid = tableBuilder.allow(parts[1]); // allow-list entry, overrides blocking rules
+                } else {
+                    // the table stores names lowercased for case-insensitive matching
+                    valid = addRecord(tableBuilder, parts, 0);
+                }
+                if (!valid && debugLevel > 0) {
+                    System.err.println("Skipping invalid line in data file: " + line);
+                }
+            }
+        }
+        return tableBuilder.build(offHeap);
+    }
+
+    /**
+     * Reads the diff file next to the data file.
+     * @return The rules of the valid diff lines, empty if there is no diff file.
+     */
+    private LocalRecordTable.Builder readDiffFile() {
+        LocalRecordTable.Builder rules = new LocalRecordTable.Builder();
+        File diffFile = getDiffFile();
+        if (!diffFile.exists()) {
+            return rules;
+        }
+        int lines = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(diffFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (applyLine(rules, line)) {
+                    lines++;
+                } else if (debugLevel > 0) {
+                    System.err.println("Skipping invalid line in diff file: " + line);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read diff file: " + diffFile + ": " + e.getMessage());
+        }
+        if (debugLevel > 0) {
+            System.out.println("Loaded " + lines + " diff lines from " + diffFile);
+        }
+        return rules;
+    }
+
+    /**
+     * An immutable view of the local database: the base table with the diff overlay on top, and the
+     * recent console changes on top of that. Lookups return a handle, an entry offset tagged with
+     * OVERLAY_BIT or RECENT_BIT if it lives in one of those tables.
+     */
+    static final class Snapshot {
+        // resolve() results: a handle, optionally tagged ALLOWED; negative (and tagged) if there is no data.
+        private static final long ALLOWED = 1L << 40;
+        private static final long NO_DATA = Long.MIN_VALUE;
+        private static final long NO_ENTRY = -1;
+
+        private final LocalRecordTable base;
+        private final LocalRecordTable overlay; // null if there are no diffs
+        private final LocalRecordTable recent;  // null if no console operation came after the last fold
+        private final int wildcardCount;
+
+        Snapshot(LocalRecordTable base, LocalRecordTable overlay) {
+            this(base, overlay, null);
+        }
+
+        /**
+         * @param recent Entries that replace the overlay's entries for the same names.
+         */
+        Snapshot(LocalRecordTable base, LocalRecordTable overlay, LocalRecordTable recent) {
+            this.base = base;
+            this.overlay = overlay;
+            this.recent = recent;
+            this.wildcardCount = base.getWildcardCount() + (overlay == null ? 0 : overlay.getWildcardCount())
+                    + (recent == null ? 0 : recent.getWildcardCount());
+        }
+
+        /**
+         * Resolves a query name against exact names, wildcard rules and allow-list overrides.
+         * An exact record wins over wildcards, and a more specific wildcard wins over a less specific one.
+         * A blocking match is ignored if the name, or a wildcard covering it, is allow-listed. For each
+         * name the overlay replaces the base table's record, and a removal hides it.
+         * @param data The buffer holding the name (usually the query packet).
+         * @param start The offset of the first length byte.
+         * @param end The offset just past the terminating zero label.
+         * @param hash The hash of the name as computed by LocalRecordTable.hashName().
+         * @return The handle of the entry that decides the query (blocked or with an answer), or -1 if the
+         *         query should be forwarded.
+         */
+        public long lookup(byte[] data, int start, int end, int hash) {
+            long exact = resolve(findDiff(data, start, end, hash), base.find(data, start, end, hash));
+            boolean allowed = exact != NO_ENTRY && (exact & ALLOWED) != 0; // NO_ENTRY has every bit set
+            long match = exact >= 0 ? exact & ~ALLOWED : -1;
+            if (wildcardCount > 0 && (match < 0 || isBlocked(match))) {
+                // hash(suffix at i) = hash - hash(prefix before i) * 31^(end - i); pow tracks 31^(end - i).
+                int pow = 1;
+                for (int i = start; i < end; i++) {
+                    pow *= 31;
+                }
+                int prefix = 0;
+                int index = start;
+                while ((data[index] & 0xFF) != 0) {
+                    int len = data[index] & 0xFF;
+                    for (int i = index; i <= index + len; i++) {
+                        prefix = 31 * prefix + LocalRecordTable.toLower(data[i]);
+                        pow *= LocalRecordTable.INV31;
+                    }
+                    index += len + 1;
+                    if ((data[index] & 0xFF) == 0) {
+                        break; // no wildcard rules on the root
+                    }
+                    int wildcardHash = LocalRecordTable.WILDCARD_LABEL * pow + hash - prefix * pow;
+                    long wildcard = resolve(findDiffWildcard(wildcardHash, data, index, end),
+                            base.findWildcard(wildcardHash, data, index, end));
+                    if (wildcard == NO_ENTRY) {
+                        continue;
+                    }
+                    allowed |= (wildcard & ALLOWED) != 0;
+                    if (match < 0 && wildcard >= 0) {
+                        match = wildcard & ~ALLOWED;
+                    }
+                    if (match >= 0 && (!isBlocked(match) || allowed)) {
+                        break; // nothing further up can change the decision
+                    }
+                }
+            }
+            if (match >= 0 && isBlocked(match) && allowed) {
+                return -1;
+            }
+            return match;
+        }
+
+        /**
+         * @return The handle of the name's diff entry, from the recent table or else the overlay, or -1.
+         */
+        private long findDiff(byte[] data, int start, int end, int hash) {
+            int entry;
+            if (recent != null && (entry = recent.find(data, start, end, hash)) >= 0) {
+                return RECENT_BIT | entry;
+            }
+            if (overlay != null && (entry = overlay.find(data, start, end, hash)) >= 0) {
+                return OVERLAY_BIT | entry;
+            }
+            return -1;
+        }
+
+        private long findDiffWildcard(int hash, byte[] data, int start, int end) {
+            int entry;
+            if (recent != null && (entry = recent.findWildcard(hash, data, start, end)) >= 0) {
+                return RECENT_BIT | entry;
+            }
+            if (overlay != null && (entry = overlay.findWildcard(hash, data, start, end)) >= 0) {
+                return OVERLAY_BIT | entry;
+            }
+            return -1;
+        }
+
+        /**
+         * Merges the diff and base entries found for one name.
+         * @param diffHandle The handle from findDiff(), or -1.
+         * @return NO_ENTRY if neither table knows the name; otherwise the handle of the record that applies
+         *         (or NO_DATA if there is none), tagged with ALLOWED if the name is allow-listed.
+         */
+        private long resolve(long diffHandle, int baseEntry) {
+            if (diffHandle < 0 && baseEntry < 0) {
+                return NO_ENTRY;
+            }
+            LocalRecordTable diff = diffHandle >= 0 ? table(diffHandle) : null;
+            int diffEntry = (int) diffHandle;
+            boolean removed = diff != null && diff.hasFlag(diffEntry, LocalRecordTable.FLAG_REMOVED);
+            boolean allowed = diff != null && diff.hasFlag(diffEntry, LocalRecordTable.FLAG_ALLOW)
+                    || !removed && baseEntry >= 0 && base.hasFlag(baseEntry, LocalRecordTable.FLAG_ALLOW);
+            long handle = NO_DATA;
+            if (diff != null && diff.hasData(diffEntry)) {
+                handle = diffHandle;
+            } else if (!removed && baseEntry >= 0 && base.hasData(baseEntry)) {
+                handle = baseEntry;
+            }
+            return allowed ? handle | ALLOWED : handle;
+        }
+
+        private LocalRecordTable table(long handle) {
+            return (handle & RECENT_BIT) != 0 ? recent : (handle & OVERLAY_BIT) != 0 ? overlay : base;
+        }
+
+        public boolean isBlocked(long handle) {
+            return table(handle).isBlocked((int) handle);
+        }
+
+        /**
+         * @return The TYPE of the entry's first answer record (TYPE_CNAME for an alias), or 0 if it has none.
+         */
+        public int getAnswerType(long handle) {
+            return table(handle).getAnswerType((int) handle);
+        }
+
+        /**
+         * @return The number of the entry's records that answer a query of the given type (all for ANY).
+         */
+        public int countAnswers(long handle, int queryType) {
+            return table(handle).countAnswers((int) handle, queryType);
+        }
+
+        /**
+         * Appends the entry's records for a query type, rotated, and counts them in ANCOUNT.
+         * @see LocalRecordTable#writeAnswers(int, int, int, byte[], int, int, int)
+         */
+        public int writeAnswers(long handle, int queryType, int rotation, byte[] out, int offset, int owner,
+                                int limit) {
+            return table(handle).writeAnswers((int) handle, queryType, rotation, out, offset, owner, limit);
+        }
+
+        public String formatAnswer(long handle) {
+            return table(handle).formatAnswer((int) handle);
+        }
+
+        /**
+         * @return The number of entries in the base table, the overlay and the recent table.
+         */
+        public int size() {
+            return base.size() + (overlay == null ? 0 : overlay.size()) + (recent == null ? 0 : recent.size());
+        }
+    }
+}
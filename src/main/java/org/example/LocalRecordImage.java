@@ -0,0 +1,133 @@
+package org.example;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.CRC32C;
+
+/**
+ * LocalRecordImage reads and writes the compiled form of the local database: a small header followed by
+ * the LocalRecordTable buffer byte for byte. Loading an image maps the file instead of parsing it, so
+ * startup does not depend on the size of the list and relays on the same host share the page cache.
+ *
+ * <pre>
+ * header: int magic "DNSR" | int version | long tableLength | int crc32c(table) | int reserved
+ * table:  the LocalRecordTable buffer (hash index and pre-encoded answers)
+ * </pre>
+ */
+final class LocalRecordImage {
+    static final int MAGIC = 0x444E5352; // "DNSR"
+    static final int VERSION = 2;        // bump whenever the LocalRecordTable layout changes
+    static final int HEADER_LENGTH = 24;
+
+    private LocalRecordImage() {
+    }
+
+    /**
+     * @return true if the file starts with the image magic number.
+     */
+    static boolean isImage(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException e) {
+            return false; // Missing, unreadable or shorter than the magic number.
+        }
+    }
+
+    /**
+     * Writes the table as an image. The image is written to a temporary file that then replaces the target
+     * in one rename, so a relay that has the old image mapped (or is watching the file) never sees a
+     * partly written one.
+     * @param table The table to write.
+     * @param file The image file.
+     * @throws IOException If the image cannot be written.
+     */
+    static void write(LocalRecordTable table, File file) throws IOException {
+        ByteBuffer contents = table.contents();
+        CRC32C crc = new CRC32C();
+        crc.update(contents.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).putLong(contents.remaining()).putInt((int) crc.getValue()).putInt(0);
+        header.flip();
+
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (contents.hasRemaining()) {
+                    channel.write(contents);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Maps an image read-only and checks its header: magic, version, and the table length against the file
+     * size. The checksum is not checked here, so mapping touches only the header and the index header and
+     * takes the same time for any size of list; see verify().
+     * @param file The image file.
+     * @return A table that reads straight from the mapped file.
+     * @throws IOException If the file cannot be mapped or is not a valid image of this version.
+     */
+    static LocalRecordTable map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            if (header.remaining() < HEADER_LENGTH || header.getInt(0) != MAGIC) {
+                throw new IOException("Not a compiled database image: " + file);
+            }
+            int version = header.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported image version " + version + " (expected " + VERSION
+                        + "), recompile " + file + " with DNSDatabaseCompiler");
+            }
+            long tableLength = header.getLong(8);
+            if (tableLength < 12 || tableLength > Integer.MAX_VALUE
+                    || HEADER_LENGTH + tableLength != channel.size()) {
+                throw new IOException("Truncated or oversized database image: " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, tableLength);
+            int capacity = table.getInt(0);
+            if (Integer.bitCount(capacity) != 1 || table.getInt(4) > capacity
+                    || 12 + (long) capacity * 4 > tableLength) {
+                throw new IOException("Corrupt index in database image: " + file);
+            }
+            return LocalRecordTable.wrap(table);
+        }
+    }
+
+    /**
+     * Maps an image like map() and also checks the CRC32C of the whole table, which reads every page of it.
+     * DNSDatabaseCompiler runs this on the image it has just written, and on request (-verify).
+     * @param file The image file.
+     * @return The number of entries in the table.
+     * @throws IOException If the file is not a valid image of this version or the checksum does not match.
+     */
+    static int verify(File file) throws IOException {
+        LocalRecordTable table = map(file);
+        int expected;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.skipNBytes(16);
+            expected = in.readInt();
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(table.contents());
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Checksum mismatch in database image: " + file);
+        }
+        return table.size();
+    }
+}
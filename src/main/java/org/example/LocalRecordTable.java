@@ -0,0 +1,743 @@
+package org.example;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * LocalRecordTable is the in-memory form of the local DNS database. It is a single flat buffer (on or off
+ * heap) holding an open-addressing hash index over lowercased wire-format names, and for every name its
+ * pre-encoded answer records (TYPE, CLASS, TTL, RDLENGTH, RDATA) that can be copied straight into a
+ * response. Lookups work on the raw bytes of the query, so answering from the table allocates nothing.
+ * A name holds any number of A and AAAA records, or a single CNAME record whose target is resolved with
+ * another lookup.
+ *
+ * <p>Besides exact names the table holds wildcard rules, stored under the literal name "*.parent", and
+ * allow-list flags that override blocking. LocalDatabase.Snapshot resolves a query by probing the exact
+ * name and then "*.parent" for every parent domain, so a lookup costs one probe per label.
+ *
+ * <pre>
+ * buffer: int capacity | int entryCount | int wildcardCount | int slots[capacity] | entries...
+ *         (big-endian; LocalRecordImage stores exactly these bytes, so a table can be mapped from disk)
+ * slot:   0 = empty, otherwise (entry offset - dataStart + 1)
+ * entry:  int hash | u8 nameLength | name | u8 flags | u16 answerLength | answer records
+ * record: u16 type | u16 class | u32 ttl | u16 rdLength | rdata (a record without its owner name)
+ * </pre>
+ */
+class LocalRecordTable {
+    static final int FLAG_BLOCKED = 1;  // 0.0.0.0 in the data file: answer NXDOMAIN
+    static final int FLAG_ALLOW = 2;    // "allow" line: never block this name (or, on a wildcard, its subdomains)
+    static final int FLAG_REMOVED = 4;  // diff overlay tombstone: ignore this name in the base table
+    static final int TYPE_A = 1;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_AAAA = 28;
+    static final int TYPE_ANY = 255;
+    static final int CLASS_IN = 1;
+    static final int DEFAULT_TTL = 3600;
+    static final long MAX_TTL = 0x7FFFFFFFL; // RFC 2181
+
+    private static final int SLOTS_OFFSET = 12;
+    static final int INV31 = 0xBDEF7BDF;  // 31 * INV31 == 1 (mod 2^32)
+    static final int WILDCARD_LABEL = 31 * 1 + '*'; // hash contribution of the "\001*" label
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int entryCount;
+    private final int wildcardCount;
+    private final int dataStart;
+
+    private LocalRecordTable(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.capacity = buffer.getInt(0);
+        this.entryCount = buffer.getInt(4);
+        this.wildcardCount = buffer.getInt(8);
+        this.dataStart = SLOTS_OFFSET + capacity * 4;
+    }
+
+    /**
+     * Wraps a buffer laid out by Builder.build(), e.g. one mapped from a compiled image. The buffer is
+     * not copied and is only read with absolute gets, so it may be read-only.
+     */
+    static LocalRecordTable wrap(ByteBuffer buffer) {
+        return new LocalRecordTable(buffer);
+    }
+
+    /**
+     * @return A read-only view of the whole table, for writing it to an image.
+     */
+    ByteBuffer contents() {
+        return buffer.asReadOnlyBuffer().position(0).limit(buffer.capacity());
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    public int getWildcardCount() {
+        return wildcardCount;
+    }
+
+    /**
+     * Finds the entry for an exact wire-format name.
+     * @param data The buffer holding the name (usually the query packet).
+     * @param start The offset of the first length byte.
+     * @param end The offset just past the terminating zero label.
+     * @param hash The hash of the name as computed by hashName().
+     * @return The entry handle, or -1 if the name is not in the table.
+     */
+    public int find(byte[] data, int start, int end, int hash) {
+        int mask = capacity - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int rel = buffer.getInt(SLOTS_OFFSET + slot * 4);
+            if (rel == 0) {
+                return -1;
+            }
+            int entry = dataStart + rel - 1;
+            if (buffer.getInt(entry) == hash && nameEquals(entry + 4, data, start, end)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Finds the entry named "*." followed by the parent name at data[start, end).
+     * @param hash The hash of the wildcard name.
+     */
+    int findWildcard(int hash, byte[] data, int start, int end) {
+        int mask = capacity - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int rel = buffer.getInt(SLOTS_OFFSET + slot * 4);
+            if (rel == 0) {
+                return -1;
+            }
+            int entry = dataStart + rel - 1;
+            int name = entry + 4;
+            if (buffer.getInt(entry) == hash && (buffer.get(name) & 0xFF) == end - start + 2
+                    && buffer.get(name + 1) == 1 && buffer.get(name + 2) == '*'
+                    && regionEquals(name + 3, data, start, end)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    boolean hasFlag(int entry, int flag) {
+        return (buffer.get(flagsOffset(entry)) & flag) != 0;
+    }
+
+    /**
+     * @return true if the entry blocks or answers, false if it only carries an allow-list or removal flag.
+     */
+    boolean hasData(int entry) {
+        return isBlocked(entry) || buffer.getShort(flagsOffset(entry) + 1) != 0;
+    }
+
+    public boolean isBlocked(int entry) {
+        return (buffer.get(flagsOffset(entry)) & FLAG_BLOCKED) != 0;
+    }
+
+    /**
+     * @return The TYPE of the entry's first answer record (TYPE_CNAME for an alias), or 0 if it has none.
+     */
+    public int getAnswerType(int entry) {
+        int answer = flagsOffset(entry) + 1;
+        return buffer.getShort(answer) == 0 ? 0 : buffer.getShort(answer + 2) & 0xFFFF;
+    }
+
+    /**
+     * @return The number of the entry's records that answer a query of the given type (all for ANY).
+     */
+    public int countAnswers(int entry, int queryType) {
+        int answer = flagsOffset(entry) + 1;
+        int end = answer + 2 + (buffer.getShort(answer) & 0xFFFF);
+        int count = 0;
+        for (int record = answer + 2; record < end; record += recordLength(record)) {
+            if (queryType == TYPE_ANY || (buffer.getShort(record) & 0xFFFF) == queryType) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Appends the entry's records that answer a query of the given type, each behind a compression
+     * pointer to its owner name, and adds them to ANCOUNT. The records are rotated so that successive
+     * queries get the addresses of a name in turn (round robin).
+     * @param queryType The query type; TYPE_ANY writes every record.
+     * @param rotation Where to start in the answer set, e.g. the query's transaction ID.
+     * @param out The response being written.
+     * @param offset The end of the response so far.
+     * @param owner The offset of the owner name in out, at most 0x3FFF.
+     * @param limit The size the response must not exceed.
+     * @return The offset just past the copied records, or -1 if they do not fit under the limit.
+     */
+    public int writeAnswers(int entry, int queryType, int rotation, byte[] out, int offset, int owner, int limit) {
+        int count = countAnswers(entry, queryType);
+        if (count == 0) {
+            return offset;
+        }
+        int answer = flagsOffset(entry) + 1;
+        int end = answer + 2 + (buffer.getShort(answer) & 0xFFFF);
+        int first = rotation % count;
+        // Two passes: the records from the first one on, then the ones before it.
+        for (int pass = 0; pass < 2; pass++) {
+            int index = 0;
+            for (int record = answer + 2; record < end; record += recordLength(record)) {
+                if (queryType != TYPE_ANY && (buffer.getShort(record) & 0xFFFF) != queryType) {
+                    continue;
+                }
+                if ((index++ >= first) == (pass == 0)) {
+                    int length = recordLength(record);
+                    if (offset + 2 + length > limit) {
+                        return -1;
+                    }
+                    out[offset] = (byte) (0xC0 | (owner >>> 8));
+                    out[offset + 1] = (byte) owner;
+                    buffer.get(record, out, offset + 2, length);
+                    offset += 2 + length;
+                }
+            }
+        }
+        DNSPacketUtil.writeU16(out, 6, DNSPacketUtil.readU16(out, 6) + count);
+        return offset;
+    }
+
+    private int recordLength(int record) {
+        return 10 + (buffer.getShort(record + 8) & 0xFFFF);
+    }
+
+    /**
+     * @return The entry's answer records as text ("1.2.3.4, ::1" or "CNAME target"), for debug output.
+     */
+    public String formatAnswer(int entry) {
+        int answer = flagsOffset(entry) + 1;
+        int end = answer + 2 + (buffer.getShort(answer) & 0xFFFF);
+        if (end == answer + 2) {
+            return "0.0.0.0";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int record = answer + 2; record < end; record += recordLength(record)) {
+            byte[] rdata = new byte[recordLength(record) - 10];
+            buffer.get(record + 10, rdata);
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            if ((buffer.getShort(record) & 0xFFFF) == TYPE_CNAME) {
+                sb.append("CNAME ").append(nameToString(rdata, 0, rdata.length));
+                continue;
+            }
+            try {
+                sb.append(InetAddress.getByAddress(rdata).getHostAddress());
+            } catch (UnknownHostException e) {
+                sb.append('?');
+            }
+        }
+        return sb.toString();
+    }
+
+    private int flagsOffset(int entry) {
+        return entry + 5 + (buffer.get(entry + 4) & 0xFF);
+    }
+
+    private boolean nameEquals(int nameOffset, byte[] data, int start, int end) {
+        int length = buffer.get(nameOffset) & 0xFF;
+        return length == end - start && regionEquals(nameOffset + 1, data, start, end);
+    }
+
+    private boolean regionEquals(int offset, byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(offset++) != toLower(data[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes a wire-format name case-insensitively (polynomial hash, so the hash of any parent domain can be
+     * derived from the hash of the full name, see LocalDatabase.Snapshot.lookup()).
+     */
+    static int hashName(byte[] data, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + toLower(data[i]);
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    static byte toLower(byte b) {
+        // Label length bytes are at most 63, so they are never changed by this.
+        return b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b;
+    }
+
+    /**
+     * Converts a wire-format name to its dotted, lowercased text form (without the trailing dot).
+     */
+    static String nameToString(byte[] data, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        int index = start;
+        while (index < end) {
+            int len = data[index] & 0xFF;
+            if (len == 0) {
+                break;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = index + 1; i <= index + len; i++) {
+                sb.append((char) (toLower(data[i]) & 0xFF));
+            }
+            index += len + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Converts a dotted domain name to lowercased wire format.
+     * @return The encoded name, or null if it is not a valid domain name.
+     */
+    static byte[] nameToWire(String domain) {
+        if (domain.endsWith(".")) {
+            domain = domain.substring(0, domain.length() - 1);
+        }
+        byte[] wire = new byte[domain.length() + 2];
+        int out = 0;
+        int labelStart = 0;
+        while (labelStart <= domain.length() && !domain.isEmpty()) {
+            int dot = domain.indexOf('.', labelStart);
+            int labelEnd = dot < 0 ? domain.length() : dot;
+            int len = labelEnd - labelStart;
+            if (len == 0 || len > 63) {
+                return null;
+            }
+            wire[out++] = (byte) len;
+            for (int i = labelStart; i < labelEnd; i++) {
+                char c = domain.charAt(i);
+                if (c > 0xFF) {
+                    return null;
+                }
+                wire[out++] = toLower((byte) c);
+            }
+            labelStart = labelEnd + 1;
+        }
+        wire[out++] = 0;
+        return out > 255 ? null : Arrays.copyOf(wire, out);
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address literal without ever doing a name lookup.
+     * @return The address bytes (4 or 16), or null if the text is not an address literal.
+     */
+    static byte[] parseAddress(String ip) {
+        if (ip.indexOf(':') >= 0) {
+            try {
+                return InetAddress.getByName(ip).getAddress(); // a literal with ':' is never resolved
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        String[] parts = ip.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            try {
+                int num = Integer.parseInt(parts[i]);
+                if (num < 0 || num > 255) {
+                    return null;
+                }
+                address[i] = (byte) num;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return address;
+    }
+
+    /**
+     * Builds a LocalRecordTable one data file line at a time. Addresses added for the same name accumulate
+     * into one answer set; a CNAME or a block replaces whatever the name had, as does an address added to
+     * a blocked name or an alias. Allow-list flags are kept across such replacements. Records are collected
+     * per name, and every name is encoded once, by build().
+     *
+     * <p>Names and records live in a few growing primitive arrays rather than in objects per name, so a
+     * builder holds about twice the bytes of the finished table (some 120 bytes per typical entry) and a
+     * list of millions of names can be built on a modest heap.
+     */
+    static class Builder {
+        private static final int NONE = -1;
+
+        // Name i, in insertion order (the order of the entries), is the wire-format name at names[nameStart[i]],
+        // up to the next name. Its records form a list through nextRecord, from firstRecord to lastRecord.
+        private byte[] names = new byte[256];
+        private int namesLength;
+        private int[] nameStart = new int[16];
+        private int[] nameHash = new int[16];
+        private byte[] nameFlags = new byte[16];
+        private int[] firstRecord = new int[16];
+        private int[] lastRecord = new int[16];
+        private int[] answerLength = new int[16];
+        private int count;
+        private int wildcardCount;
+        private int[] slots = new int[32]; // open-addressing index over the names: 0 = empty, else index + 1
+
+        // Record r (TYPE, CLASS, TTL, RDLENGTH, RDATA) is at records[recordStart[r]]. A record that is
+        // replaced stays in the arrays, unlinked, until the builder is dropped.
+        private byte[] records = new byte[256];
+        private int recordsLength;
+        private int[] recordStart = new int[16];
+        private int[] nextRecord = new int[16];
+        private int recordCount;
+
+        /**
+         * Adds one "ip domain" line of the data file with the default TTL.
+         * @see #add(String, String, long)
+         */
+        public boolean add(String ip, String domain) {
+            return add(ip, domain, DEFAULT_TTL);
+        }
+
+        /**
+         * Adds one "ip domain [ttl]" line of the data file. The domain may be an exact name, "*.example.com"
+         * (every subdomain of example.com) or ".example.com" (example.com and every subdomain).
+         * @param ip The IPv4/IPv6 address, or 0.0.0.0 to block the domain.
+         * @param domain The domain name or rule.
+         * @param ttl The TTL of the record in seconds.
+         * @return false if the address, domain name or TTL is invalid and the line was skipped.
+         */
+        public boolean add(String ip, String domain, long ttl) {
+            byte[] address = parseAddress(ip);
+            if (address == null || ttl < 0 || ttl > MAX_TTL) {
+                return false;
+            }
+            boolean blocked = address.length == 4 && address[0] == 0 && address[1] == 0
+                    && address[2] == 0 && address[3] == 0;
+            if (blocked) {
+                return putRule(domain, FLAG_BLOCKED, new byte[0]);
+            }
+            return putRule(domain, 0, record(address.length == 4 ? TYPE_A : TYPE_AAAA, ttl, address));
+        }
+
+        /**
+         * Adds one "cname alias target [ttl]" line: queries for the alias (an exact name or rule, as for
+         * add()) are answered with a CNAME record, followed by the target's records if it is local too.
+         * @param alias The domain name or rule that is an alias.
+         * @param target The canonical name.
+         * @param ttl The TTL of the record in seconds.
+         * @return false if a name or the TTL is invalid and the line was skipped.
+         */
+        public boolean cname(String alias, String target, long ttl) {
+            byte[] targetName = nameToWire(target);
+            if (targetName == null || ttl < 0 || ttl > MAX_TTL) {
+                return false;
+            }
+            return putRule(alias, 0, record(TYPE_CNAME, ttl, targetName));
+        }
+
+        /**
+         * @return A record without its owner name: TYPE, CLASS, TTL, RDLENGTH, RDATA.
+         */
+        private static byte[] record(int type, long ttl, byte[] rdata) {
+            byte[] record = new byte[10 + rdata.length];
+            DNSPacketUtil.writeU16(record, 0, type);
+            DNSPacketUtil.writeU16(record, 2, CLASS_IN);
+            DNSPacketUtil.writeU32(record, 4, ttl);
+            DNSPacketUtil.writeU16(record, 8, rdata.length);
+            System.arraycopy(rdata, 0, record, 10, rdata.length);
+            return record;
+        }
+
+        /**
+         * Adds one "allow domain" line: the domain (or rule, as for add()) is never blocked.
+         * @return false if the domain name is invalid and the line was skipped.
+         */
+        public boolean allow(String domain) {
+            return putRule(domain, FLAG_ALLOW, new byte[0]);
+        }
+
+        /**
+         * Adds a tombstone for the domain (or rule): when this table is used as a diff overlay, the base
+         * table's records and allow flags for that name are ignored.
+         * @return false if the domain name is invalid and the line was skipped.
+         */
+        public boolean remove(String domain) {
+            return putRule(domain, FLAG_REMOVED, new byte[0]);
+        }
+
+        private boolean putRule(String domain, int flags, byte[] answer) {
+            if (domain.startsWith(".")) {
+                // Suffix rule: the domain itself plus a wildcard for all of its subdomains.
+                String parent = domain.substring(1);
+                byte[] exact = nameToWire(parent);
+                byte[] wildcard = nameToWire("*." + parent);
+                if (parent.isEmpty() || exact == null || wildcard == null) {
+                    return false;
+                }
+                put(exact, flags, answer);
+                put(wildcard, flags, answer);
+                return true;
+            }
+            byte[] name = nameToWire(domain);
+            if (name == null) {
+                return false;
+            }
+            put(name, flags, answer);
+            return true;
+        }
+
+        /**
+         * Copies the other builder's names into this one; for a name both have, the other's rule replaces
+         * this one's.
+         */
+        void putAll(Builder other) {
+            for (int i = 0; i < other.count; i++) {
+                copyRule(other, i);
+            }
+        }
+
+        /**
+         * @return A builder with this builder's rules for the names the other builder has.
+         */
+        Builder rulesFor(Builder names) {
+            Builder selected = new Builder();
+            for (int i = 0; i < names.count; i++) {
+                int index = indexOf(names.names, names.nameStart[i], names.nameLength(i), false);
+                if (index != NONE) {
+                    selected.copyRule(this, index);
+                }
+            }
+            return selected;
+        }
+
+        /**
+         * @return The number of names (exact and wildcard) added so far.
+         */
+        int size() {
+            return count;
+        }
+
+        private void put(byte[] name, int flags, byte[] answer) {
+            int known = count;
+            int index = indexOf(name, 0, name.length, true);
+            if (index < known && flags == FLAG_ALLOW) {
+                nameFlags[index] |= FLAG_ALLOW; // allow-listing keeps the record itself
+                return;
+            }
+            boolean merge = flags == 0 && (nameFlags[index] & FLAG_BLOCKED) == 0 && firstRecord[index] != NONE
+                    && answerType(index) != TYPE_CNAME && DNSPacketUtil.readU16(answer, 0) != TYPE_CNAME;
+            if (merge) {
+                if (!addRecord(index, answer)) {
+                    return; // far more addresses than any response can carry
+                }
+            } else {
+                // An alias cannot have other records, and a block or removal has none.
+                clearRecords(index);
+                if (answer.length > 0) {
+                    addRecord(index, answer);
+                }
+            }
+            if (flags != FLAG_REMOVED) {
+                flags |= nameFlags[index] & (FLAG_ALLOW | FLAG_REMOVED);
+            }
+            nameFlags[index] = (byte) flags;
+        }
+
+        private void copyRule(Builder from, int fromIndex) {
+            int index = indexOf(from.names, from.nameStart[fromIndex], from.nameLength(fromIndex), true);
+            clearRecords(index);
+            for (int r = from.firstRecord[fromIndex]; r != NONE; r = from.nextRecord[r]) {
+                appendRecord(index, from.records, from.recordStart[r], from.recordLength(r));
+            }
+            answerLength[index] = from.answerLength[fromIndex];
+            nameFlags[index] = from.nameFlags[fromIndex];
+        }
+
+        /**
+         * Finds a name, optionally adding it (with no flags and no records) if it is new.
+         * @return The index of the name, or NONE if it is unknown and add is false.
+         */
+        private int indexOf(byte[] data, int start, int length, boolean add) {
+            if (add && (count + 1) * 2 > slots.length) {
+                growIndex();
+            }
+            int hash = hashName(data, start, start + length);
+            int mask = slots.length - 1;
+            int slot = mix(hash) & mask;
+            for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+                int index = slots[slot] - 1;
+                if (nameHash[index] == hash && nameLength(index) == length
+                        && Arrays.equals(names, nameStart[index], nameStart[index] + length, data, start, start + length)) {
+                    return index;
+                }
+            }
+            if (!add) {
+                return NONE;
+            }
+            if (count == nameStart.length) {
+                int size = count * 2;
+                nameStart = Arrays.copyOf(nameStart, size);
+                nameHash = Arrays.copyOf(nameHash, size);
+                nameFlags = Arrays.copyOf(nameFlags, size);
+                firstRecord = Arrays.copyOf(firstRecord, size);
+                lastRecord = Arrays.copyOf(lastRecord, size);
+                answerLength = Arrays.copyOf(answerLength, size);
+            }
+            if (namesLength + length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+            }
+            System.arraycopy(data, start, names, namesLength, length);
+            int index = count++;
+            nameStart[index] = namesLength;
+            namesLength += length;
+            nameHash[index] = hash;
+            nameFlags[index] = 0;
+            firstRecord[index] = NONE;
+            lastRecord[index] = NONE;
+            answerLength[index] = 0;
+            slots[slot] = index + 1;
+            if (length > 2 && data[start] == 1 && data[start + 1] == '*') {
+                wildcardCount++;
+            }
+            return index;
+        }
+
+        private void growIndex() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int index = 0; index < count; index++) {
+                int slot = mix(nameHash[index]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = index + 1;
+            }
+        }
+
+        private int nameLength(int index) {
+            return (index + 1 < count ? nameStart[index + 1] : namesLength) - nameStart[index];
+        }
+
+        private int recordLength(int record) {
+            return 10 + DNSPacketUtil.readU16(records, recordStart[record] + 8);
+        }
+
+        private int answerType(int index) {
+            return DNSPacketUtil.readU16(records, recordStart[firstRecord[index]]);
+        }
+
+        /**
+         * Adds a record to a name. A record with the same TYPE and RDATA is replaced (with its TTL) and
+         * the new one moves to the end.
+         * @return false if the record would make the answer set too large to encode, and was skipped.
+         */
+        private boolean addRecord(int index, byte[] record) {
+            int previous = NONE;
+            int beforePrevious = NONE;
+            for (int r = firstRecord[index]; r != NONE; beforePrevious = r, r = nextRecord[r]) {
+                int offset = recordStart[r];
+                if (recordLength(r) == record.length && records[offset] == record[0]
+                        && records[offset + 1] == record[1] && Arrays.equals(records, offset + 10,
+                        offset + record.length, record, 10, record.length)) {
+                    previous = r;
+                    break;
+                }
+            }
+            int length = answerLength[index] - (previous != NONE ? record.length : 0) + record.length;
+            if (length > 0xFFFF) {
+                return false;
+            }
+            if (previous != NONE) {
+                int next = nextRecord[previous];
+                if (beforePrevious == NONE) {
+                    firstRecord[index] = next;
+                } else {
+                    nextRecord[beforePrevious] = next;
+                }
+                if (lastRecord[index] == previous) {
+                    lastRecord[index] = beforePrevious;
+                }
+            }
+            appendRecord(index, record, 0, record.length);
+            answerLength[index] = length;
+            return true;
+        }
+
+        /**
+         * Links a copy of a record to the end of a name's list; the caller updates answerLength.
+         */
+        private void appendRecord(int index, byte[] data, int start, int length) {
+            if (recordCount == recordStart.length) {
+                recordStart = Arrays.copyOf(recordStart, recordCount * 2);
+                nextRecord = Arrays.copyOf(nextRecord, recordCount * 2);
+            }
+            if (recordsLength + length > records.length) {
+                records = Arrays.copyOf(records, Math.max(records.length * 2, recordsLength + length));
+            }
+            System.arraycopy(data, start, records, recordsLength, length);
+            int record = recordCount++;
+            recordStart[record] = recordsLength;
+            recordsLength += length;
+            nextRecord[record] = NONE;
+            if (lastRecord[index] == NONE) {
+                firstRecord[index] = record;
+            } else {
+                nextRecord[lastRecord[index]] = record;
+            }
+            lastRecord[index] = record;
+        }
+
+        private void clearRecords(int index) {
+            firstRecord[index] = NONE;
+            lastRecord[index] = NONE;
+            answerLength[index] = 0;
+        }
+
+        /**
+         * @param offHeap Whether to place the table in a direct buffer outside the Java heap.
+         * @return The finished, immutable table.
+         */
+        public LocalRecordTable build(boolean offHeap) {
+            int capacity = 16;
+            while (count * 2 > capacity) {
+                capacity *= 2;
+            }
+            int dataLength = 0;
+            for (int index = 0; index < count; index++) {
+                dataLength += 4 + 1 + nameLength(index) + 1 + 2 + answerLength[index];
+            }
+            int dataStart = SLOTS_OFFSET + capacity * 4;
+            ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(dataStart + dataLength)
+                    : ByteBuffer.allocate(dataStart + dataLength);
+            buffer.putInt(capacity).putInt(count).putInt(wildcardCount);
+            int mask = capacity - 1;
+            buffer.position(dataStart);
+            for (int index = 0; index < count; index++) {
+                int entry = buffer.position();
+                int hash = nameHash[index];
+                int nameLength = nameLength(index);
+                buffer.putInt(hash).put((byte) nameLength).put(names, nameStart[index], nameLength)
+                        .put(nameFlags[index]);
+                buffer.putShort((short) answerLength[index]);
+                for (int r = firstRecord[index]; r != NONE; r = nextRecord[r]) {
+                    buffer.put(records, recordStart[r], recordLength(r));
+                }
+                int slot = mix(hash) & mask;
+                while (buffer.getInt(SLOTS_OFFSET + slot * 4) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                buffer.putInt(SLOTS_OFFSET + slot * 4, entry - dataStart + 1);
+            }
+            return new LocalRecordTable(buffer);
+        }
+    }
+}
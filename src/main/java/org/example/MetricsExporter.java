@@ -0,0 +1,334 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import javax.management.*;
+
+/**
+ * MetricsExporter publishes RelayMetrics, plus values read on demand (upstream in-flight queries, hedges
+ * and per-server health, executor queue, cache and database size), in the Prometheus text format over a
+ * small local HTTP endpoint and as an MXBean. Nothing is computed until a scrape asks for it.
+ */
+class MetricsExporter implements RelayMetricsMXBean {
+    // Histogram buckets in microseconds, exported in seconds as Prometheus expects.
+    private static final long[] BUCKET_MICROS = {100, 250, 500, 1000, 2500, 5000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000};
+
+    private final RelayContext context;
+    private final RelayMetrics metrics;
+    private final ExecutorService executor;
+
+    /**
+     * @param context The shared relay state.
+     * @param executor The executor that runs request handlers, for the queue depth gauge.
+     */
+    public MetricsExporter(RelayContext context, ExecutorService executor) {
+        this.context = context;
+        this.metrics = context.getMetrics();
+        this.executor = executor;
+    }
+
+    /**
+     * Serves GET /metrics on the loopback interface.
+     * @param port The HTTP port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "dns-metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * Registers this exporter with the platform MBean server.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("org.example:type=RelayMetrics"));
+        } catch (JMException e) {
+            System.err.println("Could not register the metrics MXBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return All metrics in the Prometheus text exposition format.
+     */
+    String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        header(sb, "dnsrelay_received_total", "counter", "Queries received from clients (UDP and TCP).");
+        sample(sb, "dnsrelay_received_total", "", metrics.received.sum());
+        header(sb, "dnsrelay_tcp_queries_total", "counter", "Queries received over TCP.");
+        sample(sb, "dnsrelay_tcp_queries_total", "", metrics.tcpQueries.sum());
+        header(sb, "dnsrelay_queries_total", "counter", "Queries by the path that answered them.");
+        sample(sb, "dnsrelay_queries_total", "{path=\"malformed\"}", metrics.malformed.sum());
+        sample(sb, "dnsrelay_queries_total", "{path=\"local\"}", metrics.localHits.sum());
+        sample(sb, "dnsrelay_queries_total", "{path=\"blocked\"}", metrics.blocked.sum());
+        sample(sb, "dnsrelay_queries_total", "{path=\"cache\"}", metrics.cacheHits.sum());
+        sample(sb, "dnsrelay_queries_total", "{path=\"forwarded\"}", metrics.forwarded.sum());
+        sample(sb, "dnsrelay_queries_total", "{path=\"rate_limited\"}", metrics.rateLimited.sum());
+        sample(sb, "dnsrelay_queries_total", "{path=\"shed\"}", metrics.shed.sum());
+        header(sb, "dnsrelay_upstream_queries_total", "counter", "Forwarded queries by upstream outcome.");
+        sample(sb, "dnsrelay_upstream_queries_total", "{outcome=\"answered\"}", metrics.upstreamAnswers.sum());
+        sample(sb, "dnsrelay_upstream_queries_total", "{outcome=\"timeout\"}", metrics.upstreamTimeouts.sum());
+        sample(sb, "dnsrelay_upstream_queries_total", "{outcome=\"error\"}", metrics.upstreamErrors.sum());
+        sample(sb, "dnsrelay_upstream_queries_total", "{outcome=\"rejected\"}", metrics.upstreamRejected.sum());
+        header(sb, "dnsrelay_servfail_total", "counter", "SERVFAIL responses sent to clients.");
+        sample(sb, "dnsrelay_servfail_total", "", metrics.servfails.sum());
+        header(sb, "dnsrelay_truncated_total", "counter", "Answers sent with TC=1 because they exceeded the client's UDP size.");
+        sample(sb, "dnsrelay_truncated_total", "", metrics.truncated.sum());
+        histogram(sb, "dnsrelay_upstream_rtt_seconds", "Upstream round-trip time.", metrics.upstreamRtt);
+        histogram(sb, "dnsrelay_forward_latency_seconds", "Time to answer a forwarded query.",
+                metrics.forwardLatency);
+        header(sb, "dnsrelay_answer_latency_seconds", "histogram",
+                "Time to answer a query without the upstream, by path (lookup to encoded response).");
+        histogramSamples(sb, "dnsrelay_answer_latency_seconds", "path=\"local\"", metrics.localLatency);
+        histogramSamples(sb, "dnsrelay_answer_latency_seconds", "path=\"blocked\"", metrics.blockedLatency);
+        histogramSamples(sb, "dnsrelay_answer_latency_seconds", "path=\"cache\"", metrics.cacheLatency);
+
+        UpstreamPool upstream = context.getUpstream();
+        header(sb, "dnsrelay_upstream_hedges_total", "counter", "Queries also sent to a further upstream server.");
+        sample(sb, "dnsrelay_upstream_hedges_total", "{result=\"sent\"}", upstream.getHedges());
+        sample(sb, "dnsrelay_upstream_hedges_total", "{result=\"won\"}", upstream.getHedgeWins());
+        header(sb, "dnsrelay_upstream_tcp_fallbacks_total", "counter", "Truncated upstream answers fetched again over TCP.");
+        sample(sb, "dnsrelay_upstream_tcp_fallbacks_total", "", upstream.getTcpFallbacks());
+        header(sb, "dnsrelay_upstream_coalesced_total", "counter",
+                "Queries answered by an identical query already in flight upstream.");
+        sample(sb, "dnsrelay_upstream_coalesced_total", "", upstream.getCoalesced());
+        UpstreamPool.Server[] servers = upstream.getServers();
+        header(sb, "dnsrelay_upstream_server_queries_total", "counter", "Queries per upstream server by outcome.");
+        for (UpstreamPool.Server server : servers) {
+            sample(sb, "dnsrelay_upstream_server_queries_total",
+                    "{server=\"" + server.getName() + "\",outcome=\"answered\"}", server.getAnswers());
+            sample(sb, "dnsrelay_upstream_server_queries_total",
+                    "{server=\"" + server.getName() + "\",outcome=\"failed\"}", server.getFailures());
+        }
+        header(sb, "dnsrelay_upstream_server_srtt_seconds", "gauge", "Smoothed RTT per upstream server.");
+        for (UpstreamPool.Server server : servers) {
+            sb.append("dnsrelay_upstream_server_srtt_seconds{server=\"").append(server.getName()).append("\"} ")
+                    .append(server.getSmoothedRttMicros() / 1e6).append('\n');
+        }
+        header(sb, "dnsrelay_upstream_server_state", "gauge",
+                "Circuit breaker per upstream server: 0 closed, 1 open, 2 half-open.");
+        for (UpstreamPool.Server server : servers) {
+            sample(sb, "dnsrelay_upstream_server_state", "{server=\"" + server.getName() + "\"}", server.getState());
+        }
+        header(sb, "dnsrelay_upstream_in_flight", "gauge", "Queries waiting for an upstream answer.");
+        sample(sb, "dnsrelay_upstream_in_flight", "", getUpstreamInFlight());
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            header(sb, "dnsrelay_executor_queue_depth", "gauge", "Tasks waiting for a handler thread.");
+            sample(sb, "dnsrelay_executor_queue_depth", "", pool.getQueue().size());
+            header(sb, "dnsrelay_executor_active_threads", "gauge", "Handler threads running a task.");
+            sample(sb, "dnsrelay_executor_active_threads", "", pool.getActiveCount());
+        } else if (executor instanceof PriorityExecutor) {
+            PriorityExecutor pool = (PriorityExecutor) executor;
+            header(sb, "dnsrelay_executor_queue_depth", "gauge", "Tasks waiting for a handler thread, by lane.");
+            sample(sb, "dnsrelay_executor_queue_depth", "{lane=\"urgent\"}", pool.getUrgentQueueSize());
+            sample(sb, "dnsrelay_executor_queue_depth", "{lane=\"forward\"}", pool.getForwardQueueSize());
+            header(sb, "dnsrelay_executor_active_threads", "gauge", "Handler threads running a task.");
+            sample(sb, "dnsrelay_executor_active_threads", "", pool.getActiveCount());
+        }
+        DNSCache cache = context.getCache();
+        if (cache != null) {
+            header(sb, "dnsrelay_cache_entries", "gauge", "Responses in the cache.");
+            sample(sb, "dnsrelay_cache_entries", "", cache.size());
+            header(sb, "dnsrelay_cache_lookups_total", "counter", "Cache lookups by result.");
+            sample(sb, "dnsrelay_cache_lookups_total", "{result=\"hit\"}", cache.getHits());
+            sample(sb, "dnsrelay_cache_lookups_total", "{result=\"miss\"}", cache.getMisses());
+            header(sb, "dnsrelay_cache_evictions_total", "counter", "Responses evicted from the full cache.");
+            sample(sb, "dnsrelay_cache_evictions_total", "", cache.getEvictions());
+        }
+        QueryLog queryLog = context.getQueryLog();
+        if (queryLog != null) {
+            header(sb, "dnsrelay_query_log_records_total", "counter", "Query log records by outcome.");
+            sample(sb, "dnsrelay_query_log_records_total", "{outcome=\"written\"}", queryLog.getWritten());
+            sample(sb, "dnsrelay_query_log_records_total", "{outcome=\"dropped\"}", queryLog.getDropped());
+        }
+        header(sb, "dnsrelay_local_entries", "gauge", "Entries in the local database, including diffs.");
+        sample(sb, "dnsrelay_local_entries", "", context.getLocalRecords().snapshot().size());
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        header(sb, name, "histogram", help);
+        histogramSamples(sb, name, "", histogram);
+    }
+
+    /**
+     * @param labels The labels without braces, e.g. path="local", or "" for none.
+     */
+    private static void histogramSamples(StringBuilder sb, String name, String labels, LatencyHistogram histogram) {
+        String bucketPrefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        String sampleLabels = labels.isEmpty() ? "" : "{" + labels + "}";
+        long count = histogram.getCount(); // read first, so no bucket exceeds it
+        for (long bound : BUCKET_MICROS) {
+            sb.append(name).append("_bucket").append(bucketPrefix).append("le=\"").append(bound / 1e6).append("\"} ")
+                    .append(Math.min(histogram.getCountAtOrBelow(bound), count)).append('\n');
+        }
+        sb.append(name).append("_bucket").append(bucketPrefix).append("le=\"+Inf\"} ").append(count).append('\n');
+        sb.append(name).append("_sum").append(sampleLabels).append(' ').append(histogram.getSum() / 1e6).append('\n');
+        sb.append(name).append("_count").append(sampleLabels).append(' ').append(count).append('\n');
+    }
+
+    @Override
+    public long getReceived() {
+        return metrics.received.sum();
+    }
+
+    @Override
+    public long getMalformed() {
+        return metrics.malformed.sum();
+    }
+
+    @Override
+    public long getLocalHits() {
+        return metrics.localHits.sum();
+    }
+
+    @Override
+    public long getBlocked() {
+        return metrics.blocked.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return metrics.cacheHits.sum();
+    }
+
+    @Override
+    public long getForwarded() {
+        return metrics.forwarded.sum();
+    }
+
+    @Override
+    public long getUpstreamTimeouts() {
+        return metrics.upstreamTimeouts.sum();
+    }
+
+    @Override
+    public long getUpstreamErrors() {
+        return metrics.upstreamErrors.sum();
+    }
+
+    @Override
+    public long getUpstreamRejected() {
+        return metrics.upstreamRejected.sum();
+    }
+
+    @Override
+    public long getServfails() {
+        return metrics.servfails.sum();
+    }
+
+    @Override
+    public long getRateLimited() {
+        return metrics.rateLimited.sum();
+    }
+
+    @Override
+    public long getShed() {
+        return metrics.shed.sum();
+    }
+
+    @Override
+    public long getTcpQueries() {
+        return metrics.tcpQueries.sum();
+    }
+
+    @Override
+    public long getTruncated() {
+        return metrics.truncated.sum();
+    }
+
+    @Override
+    public long getUpstreamTcpFallbacks() {
+        return context.getUpstream().getTcpFallbacks();
+    }
+
+    @Override
+    public long getUpstreamHedges() {
+        return context.getUpstream().getHedges();
+    }
+
+    @Override
+    public long getUpstreamHedgeWins() {
+        return context.getUpstream().getHedgeWins();
+    }
+
+    @Override
+    public long getUpstreamCoalesced() {
+        return context.getUpstream().getCoalesced();
+    }
+
+    @Override
+    public int getUpstreamInFlight() {
+        return context.getUpstream().getInFlight();
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        if (executor instanceof PriorityExecutor) {
+            PriorityExecutor pool = (PriorityExecutor) executor;
+            return pool.getUrgentQueueSize() + pool.getForwardQueueSize();
+        }
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : -1;
+    }
+
+    @Override
+    public long getUpstreamRttP50Micros() {
+        return metrics.upstreamRtt.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getUpstreamRttP99Micros() {
+        return metrics.upstreamRtt.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getLocalLatencyP99Micros() {
+        return metrics.localLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getCacheLatencyP99Micros() {
+        return metrics.cacheLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getForwardLatencyP99Micros() {
+        return metrics.forwardLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getQueryLogDropped() {
+        QueryLog queryLog = context.getQueryLog();
+        return queryLog != null ? queryLog.getDropped() : 0;
+    }
+}
@@ -0,0 +1,171 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * NioDNSServer is an alternative to the single blocking receive loop in DNSRelay. It runs several event
+ * loops, each with its own non-blocking DatagramChannel bound to the same port via SO_REUSEPORT, so the
+ * kernel spreads incoming packets across loops. Queries that can be answered locally (blocked, local
+ * record, cache hit) are answered inline on the loop thread, the local ones without allocating; only
+ * forwarded queries are handed to the executor. Sources over their rate are answered (or dropped) by the
+ * overload policy before any lookup, and so are queries the executor has no room for.
+ */
+class NioDNSServer {
+    private static final int PACKET_SIZE = DNSPacketUtil.MAX_UDP_PAYLOAD; // largest datagram sent or received
+
+    private final RelayContext context;
+    private final int port;
+    private final int loopCount;
+    private final ExecutorService forwardExecutor;
+    private final RateLimiter rateLimiter;
+    private final ByteBufferPool bufferPool = new ByteBufferPool(PACKET_SIZE, 1024);
+
+    /**
+     * @param context The shared relay state.
+     * @param port The UDP port to listen on.
+     * @param loopCount The number of event loops (typically one per core).
+     * @param forwardExecutor The executor that runs queries which have to be forwarded upstream.
+     * @param rateLimiter The per-network rate limit, or null if clients are not rate limited.
+     */
+    public NioDNSServer(RelayContext context, int port, int loopCount, ExecutorService forwardExecutor,
+                        RateLimiter rateLimiter) {
+        this.context = context;
+        this.port = port;
+        this.loopCount = loopCount;
+        this.forwardExecutor = forwardExecutor;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Binds the channels and starts the event loop threads.
+     * @throws IOException If a channel cannot be bound.
+     */
+    public void start() throws IOException {
+        int loops = loopCount;
+        DatagramChannel probe = DatagramChannel.open();
+        boolean reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        probe.close();
+        if (!reusePort && loops > 1) {
+            System.err.println("SO_REUSEPORT is not supported on this platform; using a single event loop.");
+            loops = 1;
+        }
+        for (int i = 0; i < loops; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(port));
+            EventLoop loop = new EventLoop(channel);
+            Thread thread = new Thread(loop, "dns-event-loop-" + i);
+            thread.start();
+        }
+        if (context.getDebugLevel() > 0) {
+            System.out.println("NIO engine started " + loops + " event loop(s) on port " + port);
+        }
+    }
+
+    /**
+     * One receive loop with its own channel and selector.
+     */
+    private final class EventLoop implements Runnable, ResponseSender {
+        private final DatagramChannel channel;
+        private final Selector selector;
+
+        EventLoop(DatagramChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer recvBuf = bufferPool.acquire();
+            // Loop-owned buffers: locally answered queries are parsed and encoded without allocating.
+            byte[] requestBuf = new byte[PACKET_SIZE];
+            byte[] out = new byte[PACKET_SIZE];
+            DNSQuestion question = new DNSQuestion();
+            while (channel.isOpen()) {
+                try {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    // Drain every queued datagram before going back to the selector.
+                    SocketAddress source;
+                    while (true) {
+                        recvBuf.clear();
+                        source = channel.receive(recvBuf);
+                        if (source == null) {
+                            break;
+                        }
+                        recvBuf.flip();
+                        int length = recvBuf.remaining();
+                        recvBuf.get(requestBuf, 0, length);
+                        dispatch(requestBuf, length, question, out, (InetSocketAddress) source);
+                    }
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    System.err.println("IO error while receiving packet: " + e.getMessage());
+                }
+            }
+            bufferPool.release(recvBuf);
+        }
+
+        private void dispatch(byte[] requestBuf, int length, DNSQuestion question, byte[] out, InetSocketAddress client)
+                throws IOException {
+            RelayMetrics metrics = context.getMetrics();
+            metrics.received.increment();
+            if (rateLimiter != null && !rateLimiter.tryAcquire(client.getAddress())) {
+                metrics.rateLimited.increment();
+                if (context.getOverloadPolicy() != RelayContext.OVERLOAD_DROP && question.parse(requestBuf, length)) {
+                    int responseLength = DNSRequestHandler.writeOverloadResponse(context, question, out, false);
+                    send(out, responseLength, client);
+                }
+                return;
+            }
+            if (!question.parse(requestBuf, length)) {
+                metrics.malformed.increment();
+                return; // Not a valid DNS query
+            }
+            int responseLength = DNSRequestHandler.answerLocally(context, question, out,
+                    question.getUdpLimit(context.getEdnsUdpSize()), client);
+            if (responseLength > 0) {
+                send(out, responseLength, client);
+                return;
+            }
+            // Cache lookups and forwarded queries need their own copy of the request.
+            DNSRequestHandler handler = new DNSRequestHandler(context, this, Arrays.copyOf(requestBuf, length), client);
+            handler.parse();
+            if (handler.tryAnswerFromCache()) {
+                return;
+            }
+            try {
+                forwardExecutor.execute(handler);
+            } catch (RejectedExecutionException e) {
+                metrics.shed.increment();
+                handler.shed();
+            }
+        }
+
+        /**
+         * Sends a response through this loop's channel. Safe to call from executor threads as well.
+         */
+        @Override
+        public void send(byte[] response, int length, InetSocketAddress client) throws IOException {
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                buffer.put(response, 0, length).flip();
+                // A non-blocking send drops the datagram if the socket buffer is full, like any UDP loss.
+                channel.send(buffer, client);
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+}
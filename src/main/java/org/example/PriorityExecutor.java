@@ -0,0 +1,224 @@
+package org.example;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.*;
+
+/**
+ * PriorityExecutor is a fixed pool of worker threads fed by two bounded queues: an urgent lane for work
+ * that never waits on the network (parsing, local and blocklist answers, cache hits) and a forward lane
+ * for queries that block on the upstream. Workers always drain the urgent lane first, and a few workers
+ * never take forwarded work, so local answers keep their latency even when every other worker is waiting
+ * on a slow upstream. Neither queue grows without bound: a full lane rejects the task and the caller
+ * sheds the query instead.
+ */
+class PriorityExecutor extends AbstractExecutorService {
+    private final ArrayDeque<Runnable> urgent;
+    private final ArrayDeque<Runnable> forward;
+    private final int capacity;
+    private final int forwardLimit; // workers that may run forwarded tasks at the same time
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition terminated = lock.newCondition();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final Thread[] workers;
+    private int liveWorkers;
+    private int forwardRunning;
+    private boolean shutdown;
+
+    /**
+     * @param threads The number of worker threads.
+     * @param reserved The number of those threads kept for the urgent lane (at least one).
+     * @param capacity The maximum number of queued tasks per lane.
+     */
+    public PriorityExecutor(int threads, int reserved, int capacity) {
+        this.capacity = capacity;
+        this.forwardLimit = Math.max(1, threads - Math.max(1, reserved));
+        this.urgent = new ArrayDeque<>(Math.min(capacity, 1024));
+        this.forward = new ArrayDeque<>(Math.min(capacity, 1024));
+        this.workers = new Thread[threads];
+        this.liveWorkers = threads;
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::workLoop, "dns-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a task in the forward lane.
+     * @throws RejectedExecutionException If the lane is full or the executor is shut down.
+     */
+    @Override
+    public void execute(Runnable task) {
+        enqueue(forward, task);
+    }
+
+    /**
+     * Queues a task in the urgent lane, which workers drain before the forward lane.
+     * @throws RejectedExecutionException If the lane is full or the executor is shut down.
+     */
+    public void executeUrgent(Runnable task) {
+        enqueue(urgent, task);
+    }
+
+    private void enqueue(ArrayDeque<Runnable> lane, Runnable task) {
+        lock.lock();
+        try {
+            if (shutdown || lane.size() >= capacity) {
+                throw new RejectedExecutionException(shutdown ? "Executor is shut down" : "Queue is full");
+            }
+            lane.addLast(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void workLoop() {
+        boolean forwardTask = false;
+        try {
+            while (true) {
+                Runnable task;
+                lock.lock();
+                try {
+                    if (forwardTask) {
+                        forwardRunning--;
+                        forwardTask = false;
+                        if (!forward.isEmpty()) {
+                            notEmpty.signal(); // a worker may have skipped it while at the limit
+                        }
+                    }
+                    while (true) {
+                        task = urgent.pollFirst();
+                        if (task == null && forwardRunning < forwardLimit) {
+                            task = forward.pollFirst();
+                            forwardTask = task != null;
+                        }
+                        if (task != null || shutdown) {
+                            break;
+                        }
+                        notEmpty.await();
+                    }
+                    if (task == null) {
+                        return;
+                    }
+                    if (forwardTask) {
+                        forwardRunning++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                activeCount.incrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Worker task failed: " + e.getMessage());
+                } finally {
+                    activeCount.decrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdownNow()
+        } finally {
+            lock.lock();
+            try {
+                if (--liveWorkers == 0) {
+                    terminated.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public int getUrgentQueueSize() {
+        lock.lock();
+        try {
+            return urgent.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getForwardQueueSize() {
+        lock.lock();
+        try {
+            return forward.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = new ArrayList<>();
+        lock.lock();
+        try {
+            shutdown = true;
+            pending.addAll(urgent);
+            pending.addAll(forward);
+            urgent.clear();
+            forward.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        lock.lock();
+        try {
+            return shutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        lock.lock();
+        try {
+            return shutdown && liveWorkers == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!(shutdown && liveWorkers == 0)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * QueryLog is a structured query log that never blocks the packet path. Request threads claim a slot in a
+ * lock-free ring of fixed-size binary records and fill it in; if the ring is full the record is dropped
+ * and counted instead. A background thread formats the records as tab-separated lines and appends them in
+ * batches to a file that is rotated when it grows too large.
+ *
+ * <pre>
+ * record: long time | 16 bytes client address | u16 port | u16 qtype | u8 path | u8 rcode | int latency
+ *         | u8 nameLength | name (wire format, truncated to fit)
+ * line:   time  client  qname  qtype  path  rcode  latency_us
+ * </pre>
+ */
+class QueryLog implements Closeable {
+    static final int PATH_LOCAL = 0;
+    static final int PATH_BLOCKED = 1;
+    static final int PATH_CACHE = 2;
+    static final int PATH_FORWARDED = 3;
+    private static final String[] PATH_NAMES = {"local", "blocked", "cache", "forwarded"};
+
+    private static final int RECORD_SIZE = 128;
+    private static final int NAME_OFFSET = 35;
+    private static final int MAX_NAME = RECORD_SIZE - NAME_OFFSET;
+    private static final long IDLE_PARK_NANOS = 10_000_000; // writer wakeup interval when the ring is empty
+
+    private final File file;
+    private final int sampleRate;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    // The ring: seq claims slot (seq & mask); published[slot] == seq once the record is complete.
+    private final byte[] records;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private OutputStream out;
+    private long fileBytes;
+
+    /**
+     * @param file The log file; rotated copies are named file.1, file.2, ...
+     * @param sampleRate Log one in this many queries (SERVFAILs are always logged).
+     * @param maxFileBytes Rotate the file once it is this large.
+     * @param maxFiles The number of rotated copies to keep.
+     * @param capacity The number of records the ring holds, rounded up to a power of two.
+     * @throws IOException If the log file cannot be opened.
+     */
+    public QueryLog(File file, int sampleRate, long maxFileBytes, int maxFiles, int capacity) throws IOException {
+        this.file = file;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.records = new byte[size * RECORD_SIZE];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        openFile();
+        writer = new Thread(this::writeLoop, "dns-query-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @param rcode The response code that was sent.
+     * @return true if this query should be logged.
+     */
+    public boolean sample(int rcode) {
+        return sampleRate == 1 || rcode == 2 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Logs a query if it is sampled. Never blocks; drops the record if the writer has fallen behind.
+     * @param client The client that sent the query.
+     * @param question The parsed query.
+     * @param path One of the PATH_ constants.
+     * @param rcode The response code that was sent.
+     * @param latencyMicros The time taken to answer, or 0 for queries answered inline.
+     */
+    public void log(InetSocketAddress client, DNSQuestion question, int path, int rcode, long latencyMicros) {
+        if (!sample(rcode)) {
+            return;
+        }
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= published.length()) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & mask);
+        int offset = slot * RECORD_SIZE;
+        writeLong(offset, System.currentTimeMillis());
+        byte[] address = client.getAddress().getAddress();
+        if (address.length == 4) {
+            // IPv4-mapped IPv6 address
+            Arrays.fill(records, offset + 8, offset + 18, (byte) 0);
+            records[offset + 18] = (byte) 0xFF;
+            records[offset + 19] = (byte) 0xFF;
+            System.arraycopy(address, 0, records, offset + 20, 4);
+        } else {
+            System.arraycopy(address, 0, records, offset + 8, 16);
+        }
+        DNSPacketUtil.writeU16(records, offset + 24, client.getPort());
+        DNSPacketUtil.writeU16(records, offset + 26, question.getQueryType());
+        records[offset + 28] = (byte) path;
+        records[offset + 29] = (byte) rcode;
+        DNSPacketUtil.writeU32(records, offset + 30, Math.min(latencyMicros, 0xFFFFFFFFL));
+        int nameLength = Math.min(question.getNameEnd() - question.getNameStart(), MAX_NAME);
+        records[offset + 34] = (byte) nameLength;
+        System.arraycopy(question.getData(), question.getNameStart(), records, offset + NAME_OFFSET, nameLength);
+        published.lazySet(slot, seq); // release: the writer sees the complete record
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (running || head != tail.get()) {
+            int count = 0;
+            try {
+                long seq = head;
+                int slot = (int) (seq & mask);
+                while (published.get(slot) == seq) {
+                    line.setLength(0);
+                    format(slot * RECORD_SIZE, line);
+                    byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+                    out.write(bytes);
+                    fileBytes += bytes.length;
+                    head = ++seq; // frees the slot for producers
+                    slot = (int) (seq & mask);
+                    count++;
+                    if (fileBytes >= maxFileBytes) {
+                        rotate();
+                    }
+                }
+                written.add(count);
+                if (count == 0) {
+                    out.flush();
+                    if (running) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Query log write failed: " + e.getMessage());
+                LockSupport.parkNanos(IDLE_PARK_NANOS * 100);
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Query log close failed: " + e.getMessage());
+        }
+    }
+
+    private void format(int offset, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(readLong(offset))).append('\t');
+        boolean mapped = true;
+        for (int i = 0; i < 10; i++) {
+            mapped &= records[offset + 8 + i] == 0;
+        }
+        mapped &= records[offset + 18] == (byte) 0xFF && records[offset + 19] == (byte) 0xFF;
+        try {
+            byte[] address = mapped ? Arrays.copyOfRange(records, offset + 20, offset + 24)
+                    : Arrays.copyOfRange(records, offset + 8, offset + 24);
+            line.append(InetAddress.getByAddress(address).getHostAddress());
+        } catch (UnknownHostException e) {
+            line.append('?');
+        }
+        line.append(':').append(DNSPacketUtil.readU16(records, offset + 24)).append('\t');
+        int nameLength = records[offset + 34] & 0xFF;
+        line.append(nameToText(offset + NAME_OFFSET, nameLength)).append('\t');
+        line.append(DNSPacketUtil.readU16(records, offset + 26)).append('\t');
+        int path = records[offset + 28];
+        line.append(path >= 0 && path < PATH_NAMES.length ? PATH_NAMES[path] : "?").append('\t');
+        line.append(records[offset + 29]).append('\t');
+        line.append(DNSPacketUtil.readU32(records, offset + 30)).append('\n');
+    }
+
+    /**
+     * Converts a possibly truncated wire-format name to text; a cut-off name ends in "...".
+     */
+    private String nameToText(int offset, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        int index = offset;
+        int end = offset + length;
+        while (index < end) {
+            int len = records[index] & 0xFF;
+            if (len == 0) {
+                break;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            if (index + 1 + len > end) {
+                sb.append(new String(records, index + 1, end - index - 1, StandardCharsets.ISO_8859_1)).append("...");
+                return sb.toString();
+            }
+            sb.append(new String(records, index + 1, len, StandardCharsets.ISO_8859_1));
+            index += len + 1;
+        }
+        return sb.length() == 0 ? "." : sb.toString();
+    }
+
+    private void openFile() throws IOException {
+        boolean isNew = !file.exists() || file.length() == 0;
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+        fileBytes = file.length();
+        if (isNew) {
+            byte[] header = "# time\tclient\tqname\tqtype\tpath\trcode\tlatency_us\n".getBytes(StandardCharsets.UTF_8);
+            out.write(header);
+            fileBytes += header.length;
+        }
+    }
+
+    /**
+     * Renames file to file.1 (shifting older copies up and deleting the oldest) and starts a new file.
+     */
+    private void rotate() throws IOException {
+        out.close();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (maxFiles > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        openFile();
+    }
+
+    private void writeLong(int offset, long value) {
+        DNSPacketUtil.writeU32(records, offset, value >>> 32);
+        DNSPacketUtil.writeU32(records, offset + 4, value);
+    }
+
+    private long readLong(int offset) {
+        return DNSPacketUtil.readU32(records, offset) << 32 | DNSPacketUtil.readU32(records, offset + 4);
+    }
+
+    /**
+     * Writes the remaining records and closes the file.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
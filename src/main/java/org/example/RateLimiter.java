@@ -0,0 +1,137 @@
+package org.example;
+
+import java.net.*;
+
+/**
+ * RateLimiter gives every client network (an IPv4 /24 or IPv6 /56 by default) a token bucket, so one
+ * noisy or spoofed source cannot take the capacity that other clients need. Buckets live in a few
+ * striped open-addressing tables of primitive arrays, so a lookup allocates nothing and a spoofed flood
+ * of random sources cannot grow the heap: a new network takes a free slot near its hash, or replaces the
+ * least recently seen bucket there. A bucket that has been idle long enough to refill is the same as no
+ * bucket at all, so replacing it loses nothing, and idle clients are evicted without a sweeper.
+ */
+class RateLimiter {
+    private static final int STRIPES = 16;     // independent tables, each with its own lock
+    private static final int PROBE_LENGTH = 8; // slots searched for a key before one is replaced
+    private static final long MILLI = 1000;    // tokens are counted in thousandths
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long capacity;               // bucket size in thousandths of a token
+    private final long ratePerSecond;          // refill in tokens per second
+    private final long fillNanos;              // time for an empty bucket to fill up
+    private final int ipv4PrefixLength;
+    private final int ipv6PrefixLength;
+
+    /**
+     * @param ratePerSecond The sustained queries per second each network may send.
+     * @param burst The number of queries a network may send at once after being quiet.
+     * @param ipv4PrefixLength The IPv4 prefix length that makes up one network (0 to 32).
+     * @param ipv6PrefixLength The IPv6 prefix length that makes up one network (0 to 56).
+     * @param entries The number of networks tracked at the same time.
+     */
+    public RateLimiter(long ratePerSecond, long burst, int ipv4PrefixLength, int ipv6PrefixLength, int entries) {
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = Math.max(1, burst) * MILLI;
+        this.fillNanos = Math.max(1, burst) * 1_000_000_000L / ratePerSecond;
+        this.ipv4PrefixLength = Math.max(0, Math.min(32, ipv4PrefixLength));
+        this.ipv6PrefixLength = Math.max(0, Math.min(56, ipv6PrefixLength));
+        int slots = Integer.highestOneBit(Math.max(PROBE_LENGTH, entries / STRIPES - 1) << 1);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(slots);
+        }
+    }
+
+    /**
+     * Takes one token from the bucket of the client's network.
+     * @param client The source address of a query.
+     * @return true if the query may be served, false if the network is over its rate.
+     */
+    public boolean tryAcquire(InetAddress client) {
+        long key = key(client.getAddress());
+        long hash = key * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 32;
+        Stripe stripe = stripes[(int) hash & (STRIPES - 1)];
+        return stripe.tryAcquire(key, (int) (hash >>> 4), System.nanoTime());
+    }
+
+    /**
+     * Maps an address to its network: the prefix bits, tagged with the address family in the low byte so
+     * that no key is 0 (an empty slot) and IPv4 and IPv6 networks never collide.
+     */
+    private long key(byte[] address) {
+        if (address.length == 4) {
+            long ip = ((address[0] & 0xFFL) << 24) | ((address[1] & 0xFF) << 16) | ((address[2] & 0xFF) << 8)
+                    | (address[3] & 0xFF);
+            long prefix = ipv4PrefixLength == 0 ? 0 : ip >>> (32 - ipv4PrefixLength);
+            return (prefix << 8) | 0x04;
+        }
+        long high = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (address[i] & 0xFF);
+        }
+        long prefix = ipv6PrefixLength == 0 ? 0 : high >>> (64 - ipv6PrefixLength);
+        return (prefix << 8) | 0x06;
+    }
+
+    /**
+     * One table of buckets: parallel arrays of key, remaining thousandths of a token and last refill time.
+     */
+    private final class Stripe {
+        private final long[] keys;
+        private final long[] tokens;
+        private final long[] stamps;
+        private final int mask;
+
+        Stripe(int slots) {
+            keys = new long[slots];
+            tokens = new long[slots];
+            stamps = new long[slots];
+            mask = slots - 1;
+        }
+
+        synchronized boolean tryAcquire(long key, int hash, long now) {
+            int slot = -1;
+            int oldest = -1;
+            for (int i = 0; i < PROBE_LENGTH; i++) {
+                int index = (hash + i) & mask;
+                if (keys[index] == key) {
+                    slot = index;
+                    break;
+                }
+                if (keys[index] == 0) {
+                    oldest = index; // slots are never emptied, so the key cannot be further along
+                    break;
+                }
+                // Replace the least recently seen bucket; one idle long enough to be full again is as good.
+                if (oldest < 0 || stamps[index] - stamps[oldest] < 0) {
+                    oldest = index;
+                }
+            }
+            if (slot < 0) {
+                // New network (or one whose bucket was replaced): it starts with a full bucket.
+                slot = oldest;
+                keys[slot] = key;
+                tokens[slot] = capacity;
+                stamps[slot] = now;
+            } else {
+                long elapsed = now - stamps[slot];
+                if (elapsed >= fillNanos) {
+                    tokens[slot] = capacity;
+                    stamps[slot] = now;
+                } else {
+                    long refill = elapsed * ratePerSecond / 1_000_000; // thousandths of a token
+                    if (refill > 0) {
+                        tokens[slot] = Math.min(capacity, tokens[slot] + refill);
+                        // Keep the remainder of a partial thousandth for the next query.
+                        stamps[slot] += refill * 1_000_000 / ratePerSecond;
+                    }
+                }
+            }
+            if (tokens[slot] < MILLI) {
+                return false;
+            }
+            tokens[slot] -= MILLI;
+            return true;
+        }
+    }
+}
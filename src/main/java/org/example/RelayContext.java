@@ -0,0 +1,104 @@
+package org.example;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * RelayContext holds the state shared by every request handler: the local database, the response cache,
+ * the upstream servers, the upstream concurrency limit, the query log, the advertised EDNS0 UDP size, the overload
+ * policy, whether local names are authoritative, the metrics, the pooled response buffers and the debug level.
+ */
+class RelayContext {
+    // What to answer when a query is rate limited or shed because the work queues are full
+    static final int OVERLOAD_REFUSE = 0;   // REFUSED
+    static final int OVERLOAD_TRUNCATE = 1; // empty answer with TC=1, so real clients retry over TCP
+    static final int OVERLOAD_DROP = 2;     // no answer at all
+
+    private final LocalDatabase localRecords;
+    private final DNSCache cache;
+    private final UpstreamPool upstream;
+    private final Semaphore upstreamPermits;
+    private final QueryLog queryLog;
+    private final int ednsUdpSize;
+    private final int overloadPolicy;
+    private final boolean localNoData;
+    private final int debugLevel;
+    private final RelayMetrics metrics = new RelayMetrics();
+    // Response buffers for handlers, borrowed per response: a handler may run on a new virtual thread for
+    // every query, so per-thread buffers would be allocated per query.
+    private final ByteBufferPool datagramBuffers = new ByteBufferPool(DNSPacketUtil.MAX_UDP_PAYLOAD, 1024, false);
+    private final ByteBufferPool streamBuffers = new ByteBufferPool(DNSPacketUtil.MAX_TCP_MESSAGE, 32, false);
+
+    /**
+     * @param localRecords The local DNS database (swapped atomically on reload).
+     * @param cache The response cache, or null if caching is disabled.
+     * @param upstream The pool of real DNS servers that queries are forwarded to.
+     * @param upstreamPermits Caps the number of concurrently forwarded queries, or null for no limit.
+     * @param queryLog The structured query log, or null if query logging is disabled.
+     * @param ednsUdpSize The largest UDP response the relay sends and advertises in OPT records.
+     * @param overloadPolicy OVERLOAD_REFUSE, OVERLOAD_TRUNCATE or OVERLOAD_DROP.
+     * @param localNoData Whether a local name answers NODATA for the types it has no records of, instead of
+     *                    forwarding those queries.
+     * @param debugLevel The debug level (0, 1 or 2).
+     */
+    public RelayContext(LocalDatabase localRecords, DNSCache cache, UpstreamPool upstream,
+                        Semaphore upstreamPermits, QueryLog queryLog, int ednsUdpSize, int overloadPolicy,
+                        boolean localNoData, int debugLevel) {
+        this.localRecords = localRecords;
+        this.cache = cache;
+        this.upstream = upstream;
+        this.upstreamPermits = upstreamPermits;
+        this.queryLog = queryLog;
+        this.ednsUdpSize = ednsUdpSize;
+        this.overloadPolicy = overloadPolicy;
+        this.localNoData = localNoData;
+        this.debugLevel = debugLevel;
+    }
+
+    public LocalDatabase getLocalRecords() {
+        return localRecords;
+    }
+
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    public UpstreamPool getUpstream() {
+        return upstream;
+    }
+
+    public Semaphore getUpstreamPermits() {
+        return upstreamPermits;
+    }
+
+    public QueryLog getQueryLog() {
+        return queryLog;
+    }
+
+    public int getEdnsUdpSize() {
+        return ednsUdpSize;
+    }
+
+    public int getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public boolean isLocalNoData() {
+        return localNoData;
+    }
+
+    public int getDebugLevel() {
+        return debugLevel;
+    }
+
+    public RelayMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param stream true for a response sent over TCP, which may be as large as a TCP message.
+     * @return The pool of heap buffers to encode responses in.
+     */
+    public ByteBufferPool getResponseBuffers(boolean stream) {
+        return stream ? streamBuffers : datagramBuffers;
+    }
+}
@@ -0,0 +1,64 @@
+package org.example;
+
+/**
+ * JMX view of the relay metrics, registered as "org.example:type=RelayMetrics".
+ */
+public interface RelayMetricsMXBean {
+    long getReceived();
+
+    long getMalformed();
+
+    long getLocalHits();
+
+    long getBlocked();
+
+    long getCacheHits();
+
+    long getForwarded();
+
+    long getUpstreamTimeouts();
+
+    long getUpstreamErrors();
+
+    long getUpstreamRejected();
+
+    long getServfails();
+
+    long getRateLimited();
+
+    long getShed();
+
+    long getTcpQueries();
+
+    long getTruncated();
+
+    long getUpstreamTcpFallbacks();
+
+    long getUpstreamHedges();
+
+    long getUpstreamHedgeWins();
+
+    long getUpstreamCoalesced();
+
+    int getUpstreamInFlight();
+
+    /**
+     * @return Tasks waiting for a handler thread, or -1 if the executor has no queue (virtual threads).
+     */
+    int getExecutorQueueDepth();
+
+    long getUpstreamRttP50Micros();
+
+    long getUpstreamRttP99Micros();
+
+    long getLocalLatencyP99Micros();
+
+    long getCacheLatencyP99Micros();
+
+    long getForwardLatencyP99Micros();
+
+    /**
+     * @return Query log records dropped because the writer fell behind, or 0 if the log is off.
+     */
+    long getQueryLogDropped();
+}
@@ -0,0 +1,26 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Sends a DNS response back to a client. Each server engine supplies its own implementation
+ * (a shared DatagramSocket, a DatagramChannel, ...).
+ */
+@FunctionalInterface
+interface ResponseSender {
+    /**
+     * @param response The buffer holding the response packet.
+     * @param length The number of bytes of the response, starting at offset 0.
+     * @param client The client to send the response to.
+     */
+    void send(byte[] response, int length, InetSocketAddress client) throws IOException;
+
+    /**
+     * @return true for stream transports (TCP), which carry responses of any size; datagram senders
+     *         must be given responses that fit the client's UDP limit.
+     */
+    default boolean isStream() {
+        return false;
+    }
+}
@@ -0,0 +1,135 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * StubUpstream is a tiny authoritative server for load tests: it answers every A/AAAA query with a
+ * synthetic record, or with NXDOMAIN (plus an SOA, so the relay can cache it) for a configurable share of
+ * names. Answers can be delayed and dropped to model a remote upstream.
+ */
+class StubUpstream implements Closeable {
+    private static final int ANSWER_TTL = 300;
+    private static final int NEGATIVE_TTL = 60;
+
+    private final DatagramChannel channel;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double lossRatio;
+    private final double nxdomainRatio;
+    private final TimerWheel timerWheel;
+
+    /**
+     * @param address The loopback address and port to answer on.
+     * @param latencyMillis The fixed delay before each answer.
+     * @param jitterMillis An extra random delay of up to this many milliseconds.
+     * @param lossRatio The share of queries (0..1) that are silently dropped.
+     * @param nxdomainRatio The share of names (0..1) that do not exist; the choice is stable per name.
+     * @throws IOException If the port cannot be bound.
+     */
+    public StubUpstream(InetSocketAddress address, long latencyMillis, long jitterMillis, double lossRatio,
+                        double nxdomainRatio) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.lossRatio = lossRatio;
+        this.nxdomainRatio = nxdomainRatio;
+        this.timerWheel = latencyMillis > 0 || jitterMillis > 0 ? new TimerWheel(1, 4096, "stub-upstream-timer") : null;
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+        channel.bind(address);
+        Thread thread = new Thread(this::serve, "stub-upstream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        while (channel.isOpen()) {
+            SocketAddress client;
+            buffer.clear();
+            try {
+                client = channel.receive(buffer);
+            } catch (IOException e) {
+                return; // Closed
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (lossRatio > 0 && random.nextDouble() < lossRatio) {
+                continue;
+            }
+            byte[] response = answer(buffer.array(), buffer.position());
+            if (response == null) {
+                continue;
+            }
+            long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+            if (delay <= 0) {
+                send(response, client);
+            } else {
+                timerWheel.schedule(() -> send(response, client), delay);
+            }
+        }
+    }
+
+    private void send(byte[] response, SocketAddress client) {
+        try {
+            channel.send(ByteBuffer.wrap(response), client);
+        } catch (IOException e) {
+            // Dropped, like any UDP loss
+        }
+    }
+
+    /**
+     * Builds the answer to a query, or returns null if the packet is not a query.
+     */
+    private byte[] answer(byte[] query, int length) {
+        int questionEnd = DNSPacketUtil.skipName(query, DNSPacketUtil.HEADER_LENGTH, length);
+        if (length < DNSPacketUtil.HEADER_LENGTH || (query[2] & 0x80) != 0 || questionEnd < 0
+                || questionEnd + 4 > length) {
+            return null;
+        }
+        int qtype = DNSPacketUtil.readU16(query, questionEnd);
+        questionEnd += 4;
+        int nameHash = LocalRecordTable.hashName(query, DNSPacketUtil.HEADER_LENGTH, questionEnd - 4);
+        boolean nxdomain = Math.floorMod(nameHash, 10_000) < nxdomainRatio * 10_000;
+        boolean hasRecord = !nxdomain && (qtype == LocalRecordTable.TYPE_A || qtype == LocalRecordTable.TYPE_AAAA);
+
+        ByteBuffer out = ByteBuffer.allocate(questionEnd + 64);
+        out.put(query, 0, questionEnd);
+        out.put(2, (byte) (0x84 | (query[2] & 0x01)));      // QR, AA, RD copied
+        out.put(3, (byte) (0x80 | (nxdomain ? 3 : 0)));      // RA, RCODE
+        out.putShort(6, (short) (hasRecord ? 1 : 0));       // ANCOUNT
+        out.putShort(8, (short) (hasRecord ? 0 : 1));       // NSCOUNT: SOA for negative answers
+        out.putShort(10, (short) 0);                        // ARCOUNT
+        if (hasRecord) {
+            out.putShort((short) 0xC00C).putShort((short) qtype).putShort((short) LocalRecordTable.CLASS_IN)
+                    .putInt(ANSWER_TTL);
+            if (qtype == LocalRecordTable.TYPE_A) {
+                out.putShort((short) 4).put((byte) 192).put((byte) 0).put((byte) 2).put((byte) (nameHash & 0xFF));
+            } else {
+                out.putShort((short) 16).putInt(0x20010DB8).putInt(0).putInt(0).putInt(nameHash);
+            }
+        } else {
+            // SOA owned by the root: MNAME ".", RNAME ".", serial, refresh, retry, expire, minimum
+            out.put((byte) 0).putShort((short) DNSPacketUtil.TYPE_SOA).putShort((short) LocalRecordTable.CLASS_IN)
+                    .putInt(NEGATIVE_TTL).putShort((short) 22).put((byte) 0).put((byte) 0)
+                    .putInt(1).putInt(3600).putInt(600).putInt(86400).putInt(NEGATIVE_TTL);
+        }
+        byte[] response = new byte[out.position()];
+        out.flip().get(response);
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (timerWheel != null) {
+            timerWheel.close();
+        }
+    }
+}
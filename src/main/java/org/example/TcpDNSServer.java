@@ -0,0 +1,185 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * TcpDNSServer answers DNS over TCP (RFC 7766), for clients that got a truncated UDP answer or prefer TCP.
+ * Every connection has a reader thread that takes length-prefixed queries back to back without waiting
+ * for earlier answers (pipelining). Local and cached answers are written inline, forwarded ones by the
+ * executor as soon as they arrive, so answers may come back out of order. Idle connections are closed
+ * after a few seconds, and the number of open connections is capped. TCP is not rate limited: a client
+ * has to complete a handshake, so its source address cannot be spoofed, and truncated answers send
+ * rate-limited clients here. Queries the executor has no room for are shed like UDP ones.
+ */
+class TcpDNSServer {
+    private static final int IDLE_TIMEOUT_MILLIS = 10_000; // close connections without a query for this long
+    private static final int MAX_CONNECTIONS = 256;
+
+    private final RelayContext context;
+    private final int port;
+    private final ExecutorService forwardExecutor;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * @param context The shared relay state.
+     * @param port The TCP port to listen on.
+     * @param forwardExecutor The executor that runs queries which have to be forwarded upstream.
+     */
+    public TcpDNSServer(RelayContext context, int port, ExecutorService forwardExecutor) {
+        this.context = context;
+        this.port = port;
+        this.forwardExecutor = forwardExecutor;
+    }
+
+    /**
+     * Binds the listening socket and starts the accept thread.
+     * @throws IOException If the port cannot be bound.
+     */
+    public void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "dns-tcp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        if (context.getDebugLevel() > 0) {
+            System.out.println("TCP listener started on port " + port);
+        }
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        int connectionId = 0;
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                System.err.println("IO error while accepting TCP connection: " + e.getMessage());
+                continue;
+            }
+            if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+                connections.decrementAndGet();
+                closeQuietly(socket);
+                continue;
+            }
+            Connection connection = new Connection(socket);
+            Thread thread = new Thread(connection, "dns-tcp-" + connectionId++);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    /**
+     * One client connection: reads queries in a loop and writes each answer when it is ready.
+     */
+    private final class Connection implements Runnable, ResponseSender {
+        private final Socket socket;
+        private final InetSocketAddress client;
+        private DataOutputStream out;
+        private final AtomicInteger outstanding = new AtomicInteger(); // queries not answered yet
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean readDone;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+            this.client = (InetSocketAddress) socket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    } catch (EOFException | SocketTimeoutException e) {
+                        break; // Client is done, or idle
+                    }
+                    byte[] requestData = new byte[length];
+                    in.readFully(requestData);
+                    RelayMetrics metrics = context.getMetrics();
+                    metrics.received.increment();
+                    metrics.tcpQueries.increment();
+                    outstanding.incrementAndGet();
+                    DNSRequestHandler handler = new DNSRequestHandler(context, this, requestData, client);
+                    boolean forwarded = false;
+                    try {
+                        if (!handler.tryAnswerLocally()) {
+                            try {
+                                forwardExecutor.execute(() -> {
+                                    try {
+                                        handler.run();
+                                    } finally {
+                                        answered();
+                                    }
+                                });
+                                forwarded = true;
+                            } catch (RejectedExecutionException e) {
+                                metrics.shed.increment();
+                                handler.shed();
+                            }
+                        }
+                    } finally {
+                        if (!forwarded) {
+                            answered();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (context.getDebugLevel() >= 2) {
+                    System.err.println("TCP connection from " + client + " failed: " + e.getMessage());
+                }
+            } finally {
+                readDone = true;
+                if (outstanding.get() == 0) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Marks one query as done, and closes the connection after the last answer once the client has
+         * stopped sending.
+         */
+        private void answered() {
+            if (outstanding.decrementAndGet() == 0 && readDone) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                closeQuietly(socket);
+                connections.decrementAndGet();
+            }
+        }
+
+        /**
+         * Writes one length-prefixed answer. Executor threads and the reader call this concurrently.
+         */
+        @Override
+        public synchronized void send(byte[] response, int length, InetSocketAddress client) throws IOException {
+            out.writeShort(length);
+            out.write(response, 0, length);
+            out.flush();
+        }
+
+        @Override
+        public boolean isStream() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * UpstreamClient multiplexes forwarded queries over a small, fixed set of UDP channels to the upstream
+ * DNS server. Every outgoing query gets a fresh random in-flight ID; the original client ID is restored
+ * on the answer. Pending queries live in a lock-free table per channel keyed by that ID and checked
+ * against the question, one reader thread per channel completes them, and a timer wheel fails the ones
+ * that are not answered in time. Every query advertises the relay's UDP size in an EDNS0 OPT record; one
+ * is added to queries that have none (and removed again from their answers), and an answer that still
+ * comes back truncated is fetched again over a pooled TCP connection.
+ */
+class UpstreamClient implements Closeable {
+    private static final int MAX_ID_ATTEMPTS = 16;
+    private static final int TCP_CONNECTIONS = 2;      // persistent TCP connections for truncated answers
+    private static final int MAX_MESSAGE_SIZE = 65535; // largest DNS message over UDP or TCP
+    private static final long MIN_TCP_TIMEOUT_MILLIS = 1000; // budget of a TCP retry, however late the UDP answer
+
+    private final InetSocketAddress serverAddress;
+    private final long timeoutMillis;
+    private final int ednsUdpSize;
+    private final int debugLevel;
+    private final UpstreamSocket[] sockets;
+    private final TimerWheel timerWheel;
+    private final UpstreamTcpClient tcp;
+    private final AtomicInteger nextSocket = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * @param serverAddress The upstream DNS server.
+     * @param socketCount The number of UDP channels to spread queries over.
+     * @param timeoutMillis How long to wait for an upstream answer by default.
+     * @param ednsUdpSize The UDP payload size advertised in the OPT record of forwarded queries.
+     * @param timerWheel The timer wheel that fails unanswered queries (may be shared between clients).
+     * @param debugLevel The debug level (0, 1 or 2).
+     * @throws IOException If a channel cannot be opened.
+     */
+    public UpstreamClient(InetSocketAddress serverAddress, int socketCount, long timeoutMillis, int ednsUdpSize,
+                          TimerWheel timerWheel, int debugLevel) throws IOException {
+        this.serverAddress = serverAddress;
+        this.timeoutMillis = timeoutMillis;
+        this.ednsUdpSize = ednsUdpSize;
+        this.timerWheel = timerWheel;
+        this.debugLevel = debugLevel;
+        this.tcp = new UpstreamTcpClient(serverAddress, TCP_CONNECTIONS, timerWheel, debugLevel);
+        this.sockets = new UpstreamSocket[socketCount];
+        for (int i = 0; i < socketCount; i++) {
+            sockets[i] = new UpstreamSocket(i);
+        }
+    }
+
+    public InetSocketAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * @return The number of queries sent upstream that have not been answered or timed out yet.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return The number of truncated UDP answers that were fetched again over TCP.
+     */
+    public long getTcpFallbacks() {
+        return tcp.getQueries();
+    }
+
+    /**
+     * Sends a query upstream.
+     * @param query The DNS query packet from the client. It is not modified.
+     * @return A future completed with the upstream response (carrying the client's transaction ID), or
+     *         completed exceptionally on timeout or I/O error.
+     */
+    public CompletableFuture<byte[]> query(byte[] query) {
+        return query(query, timeoutMillis);
+    }
+
+    /**
+     * Sends a query upstream with its own timeout.
+     * @param query The DNS query packet from the client. It is not modified.
+     * @param timeoutMillis How long to wait for the answer.
+     * @return A future completed with the upstream response (carrying the client's transaction ID), or
+     *         completed exceptionally on timeout or I/O error.
+     */
+    public CompletableFuture<byte[]> query(byte[] query, long timeoutMillis) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        int questionEnd = DNSPacketUtil.skipName(query, DNSPacketUtil.HEADER_LENGTH, query.length);
+        if (query.length < DNSPacketUtil.HEADER_LENGTH || questionEnd < 0 || questionEnd + 4 > query.length) {
+            future.completeExceptionally(new LocalQueryException("Malformed query"));
+            return future;
+        }
+        UpstreamSocket socket = sockets[Math.floorMod(nextSocket.getAndIncrement(), sockets.length)];
+        socket.send(query, questionEnd + 4, timeoutMillis, future);
+        return future;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (UpstreamSocket socket : sockets) {
+            socket.channel.close();
+        }
+        tcp.close();
+    }
+
+    /**
+     * @return true if the answer's question section is exactly the question of the query.
+     */
+    static boolean questionMatches(byte[] data, int length, byte[] question) {
+        int end = DNSPacketUtil.HEADER_LENGTH + question.length;
+        if (DNSPacketUtil.readU16(data, 4) != 1 || end > length) {
+            return false;
+        }
+        return Arrays.equals(data, DNSPacketUtil.HEADER_LENGTH, end, question, 0, question.length);
+    }
+
+    /**
+     * A query that failed on the relay's side before it reached the server, so it says nothing about the
+     * server's health.
+     */
+    static final class LocalQueryException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LocalQueryException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * One query waiting for its answer.
+     */
+    private static final class Pending {
+        final byte[] query;    // the client's query, resent over TCP if the answer is truncated
+        final int clientId;
+        final byte[] question; // question section of the query, compared against the answer
+        final long deadline;   // System.nanoTime() at which the query times out
+        final boolean optAdded; // the client sent no OPT record, so the one the relay added is stripped again
+        final CompletableFuture<byte[]> future;
+        TimerWheel.Timeout timeout; // set before the query is published in the pending table
+
+        Pending(byte[] query, int clientId, byte[] question, long deadline, boolean optAdded,
+                CompletableFuture<byte[]> future) {
+            this.query = query;
+            this.clientId = clientId;
+            this.question = question;
+            this.deadline = deadline;
+            this.optAdded = optAdded;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A connected UDP channel with its pending table and reader thread.
+     */
+    private final class UpstreamSocket {
+        final DatagramChannel channel;
+        final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+        UpstreamSocket(int index) throws IOException {
+            channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20); // absorb bursts of answers
+            channel.bind(new InetSocketAddress(0)); // random ephemeral source port
+            channel.connect(serverAddress);        // only accept datagrams from the upstream server
+            if (debugLevel >= 1) {
+                System.out.println("Upstream channel " + index + " bound to local port "
+                        + ((InetSocketAddress) channel.getLocalAddress()).getPort());
+            }
+            Thread reader = new Thread(this::readLoop, "dns-upstream-reader-" + index);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(byte[] query, int questionEnd, long timeoutMillis, CompletableFuture<byte[]> future) {
+            int clientId = DNSPacketUtil.readU16(query, 0);
+            byte[] question = Arrays.copyOfRange(query, DNSPacketUtil.HEADER_LENGTH, questionEnd);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            int opt = DNSPacketUtil.findOpt(query, questionEnd, query.length);
+            // Only add an OPT record to a query without additional records: TSIG and SIG(0) must stay last.
+            boolean addOpt = opt < 0 && DNSPacketUtil.readU16(query, 10) == 0;
+            Pending p = new Pending(query, clientId, question, deadline, addOpt, future);
+
+            // Claim a random unused in-flight ID so that answers cannot be matched by a guessable counter.
+            // The timeout is armed before the claim is published, so the reader always sees it.
+            int id = -1;
+            inFlight.incrementAndGet();
+            for (int attempt = 0; attempt < MAX_ID_ATTEMPTS; attempt++) {
+                int candidate = ThreadLocalRandom.current().nextInt(0x10000);
+                p.timeout = timerWheel.schedule(() -> {
+                    if (pending.remove(candidate, p)) {
+                        inFlight.decrementAndGet();
+                        p.future.completeExceptionally(new SocketTimeoutException("Upstream query timed out"));
+                    }
+                }, timeoutMillis);
+                if (pending.putIfAbsent(candidate, p) == null) {
+                    id = candidate;
+                    break;
+                }
+                p.timeout.cancel();
+            }
+            if (id < 0) {
+                inFlight.decrementAndGet();
+                future.completeExceptionally(new LocalQueryException("No free upstream transaction ID"));
+                return;
+            }
+            final int upstreamId = id;
+
+            // The relay truncates for the client itself, so let the upstream send as much as we accept.
+            byte[] packet;
+            if (addOpt) {
+                packet = Arrays.copyOf(query, query.length + DNSPacketUtil.OPT_RECORD_LENGTH);
+                packet[query.length] = 0;                                      // root name
+                DNSPacketUtil.writeU16(packet, query.length + 1, DNSPacketUtil.TYPE_OPT);
+                DNSPacketUtil.writeU16(packet, query.length + 3, ednsUdpSize); // CLASS: UDP payload size
+                DNSPacketUtil.writeU32(packet, query.length + 5, 0);           // extended RCODE, version 0, DO=0
+                DNSPacketUtil.writeU16(packet, query.length + 9, 0);           // RDLENGTH: no options
+                DNSPacketUtil.writeU16(packet, 10, 1);                         // ARCOUNT
+            } else {
+                packet = query.clone();
+                if (opt >= 0) {
+                    DNSPacketUtil.writeU16(packet, opt + 2, ednsUdpSize);
+                }
+            }
+            DNSPacketUtil.writeU16(packet, 0, upstreamId);
+            try {
+                channel.write(ByteBuffer.wrap(packet));
+            } catch (IOException e) {
+                if (pending.remove(upstreamId, p)) {
+                    inFlight.decrementAndGet();
+                    p.timeout.cancel();
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+
+        private void readLoop() {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+            while (channel.isOpen()) {
+                buffer.clear();
+                try {
+                    channel.receive(buffer);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    // ICMP port unreachable and similar errors surface here; the timer will fail the query.
+                    if (debugLevel >= 2) {
+                        System.err.println("Upstream receive error: " + e.getMessage());
+                    }
+                    continue;
+                }
+                int length = buffer.position();
+                byte[] data = buffer.array();
+                if (length < DNSPacketUtil.HEADER_LENGTH || (data[2] & 0x80) == 0) {
+                    continue; // Too short or not a response.
+                }
+                int id = DNSPacketUtil.readU16(data, 0);
+                Pending p = pending.get(id);
+                if (p == null || !questionMatches(data, length, p.question)) {
+                    continue; // Late, duplicate or spoofed answer.
+                }
+                if (!pending.remove(id, p)) {
+                    continue;
+                }
+                inFlight.decrementAndGet();
+                p.timeout.cancel();
+                if ((data[2] & 0x02) != 0) {
+                    // TC=1: the answer did not fit, ask again over TCP within the time that is left, but give
+                    // the new connection or round trip at least a fair chance.
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(p.deadline - System.nanoTime());
+                    if (debugLevel >= 2) {
+                        System.out.println("Truncated answer from " + serverAddress + "; retrying over TCP.");
+                    }
+                    tcp.query(p.query, DNSPacketUtil.HEADER_LENGTH + p.question.length, Math.max(MIN_TCP_TIMEOUT_MILLIS, remainingMillis))
+                            .whenComplete((response, e) -> {
+                                if (e != null) {
+                                    p.future.completeExceptionally(e);
+                                } else {
+                                    p.future.complete(response);
+                                }
+                            });
+                    continue;
+                }
+                // The TCP retry above sends the client's own query, so only UDP answers can carry our OPT record.
+                byte[] response = p.optAdded
+                        ? DNSPacketUtil.removeOpt(data, DNSPacketUtil.HEADER_LENGTH + p.question.length, length)
+                        : Arrays.copyOf(data, length);
+                DNSPacketUtil.writeU16(response, 0, p.clientId);
+                p.future.complete(response);
+            }
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * UpstreamPool forwards queries to a set of upstream DNS servers. Every server keeps a smoothed RTT and
+ * RTT deviation (the estimator TCP uses for its retransmission timer) and a passive circuit breaker fed
+ * by the answers and timeouts of real queries. A query goes to the fastest healthy server; if that server
+ * has not answered by its hedge deadline (smoothed RTT plus twice the deviation, roughly its p95), the
+ * same query is also sent to the next server, and the first valid answer wins.
+ * <p>
+ * Identical queries that arrive while one is already being forwarded (a popular name expiring, a client
+ * retrying) are coalesced: only the first goes upstream, and the others get a copy of its answer with
+ * their own transaction ID and letter case.
+ */
+class UpstreamPool implements Closeable {
+    private static final int FAILURE_THRESHOLD = 5;       // consecutive failures that open a breaker
+    private static final long OPEN_MILLIS = 5000;         // how long an open breaker keeps a server out
+    private static final long MIN_HEDGE_MILLIS = 10;      // the timer wheel resolution
+    private static final long INITIAL_HEDGE_MILLIS = 200; // hedge deadline before a server has RTT samples
+
+    private final Server[] servers;
+    private final long timeoutMillis;
+    private final boolean hedging;
+    private final boolean coalescing;
+    private final int debugLevel;
+    private final TimerWheel timerWheel = new TimerWheel(10, 1024, "dns-upstream-timer");
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final ConcurrentHashMap<FlightKey, CompletableFuture<byte[]>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param serverAddresses The upstream DNS servers.
+     * @param socketsPerServer The number of UDP channels to spread each server's queries over.
+     * @param timeoutMillis How long to wait for an answer from any server before giving up.
+     * @param ednsUdpSize The UDP payload size advertised in the OPT record of forwarded queries.
+     * @param hedging Whether slow queries are also sent to the next server.
+     * @param coalescing Whether identical in-flight queries share one upstream query.
+     * @param debugLevel The debug level (0, 1 or 2).
+     * @throws IOException If a channel cannot be opened.
+     */
+    public UpstreamPool(List<InetSocketAddress> serverAddresses, int socketsPerServer, long timeoutMillis,
+                        int ednsUdpSize, boolean hedging, boolean coalescing, int debugLevel) throws IOException {
+        this.servers = new Server[serverAddresses.size()];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = new Server(new UpstreamClient(serverAddresses.get(i), socketsPerServer, timeoutMillis,
+                    ednsUdpSize, timerWheel, debugLevel));
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.hedging = hedging && servers.length > 1;
+        this.coalescing = coalescing;
+        this.debugLevel = debugLevel;
+    }
+
+    /**
+     * Sends a query to the best server, hedging to the next ones if it is slow or fails.
+     * @param query The DNS query packet from the client. It is not modified.
+     * @return A future completed with the first valid upstream response (carrying the client's transaction
+     *         ID), or with the last SERVFAIL/REFUSED answer if no server gave a better one, or completed
+     *         exceptionally if no server answered in time.
+     */
+    public CompletableFuture<byte[]> query(byte[] query) {
+        FlightKey key = coalescing ? FlightKey.of(query) : null;
+        if (key == null) {
+            return send(query);
+        }
+        CompletableFuture<byte[]> flight = new CompletableFuture<>();
+        CompletableFuture<byte[]> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.increment();
+            return leader.thenApply(response -> forClient(response, query));
+        }
+        send(query).whenComplete((response, e) -> {
+            flights.remove(key, flight); // later queries go upstream again (or hit the cache)
+            if (e != null) {
+                flight.completeExceptionally(e);
+            } else {
+                flight.complete(response);
+            }
+        });
+        return flight;
+    }
+
+    private CompletableFuture<byte[]> send(byte[] query) {
+        Attempt attempt = new Attempt(query, order(System.nanoTime()));
+        synchronized (attempt) {
+            attempt.sendNext();
+        }
+        return attempt.result;
+    }
+
+    /**
+     * Copies a coalesced answer for another client: its transaction ID and its spelling of the name
+     * (0x20 randomization), which may differ in letter case from the query that went upstream.
+     */
+    private static byte[] forClient(byte[] response, byte[] query) {
+        byte[] copy = response.clone();
+        copy[0] = query[0];
+        copy[1] = query[1];
+        int nameEnd = DNSPacketUtil.skipName(query, DNSPacketUtil.HEADER_LENGTH, query.length);
+        if (nameEnd > 0 && nameEnd <= copy.length) {
+            System.arraycopy(query, DNSPacketUtil.HEADER_LENGTH, copy, DNSPacketUtil.HEADER_LENGTH,
+                    nameEnd - DNSPacketUtil.HEADER_LENGTH);
+        }
+        return copy;
+    }
+
+    /**
+     * @return The number of queries sent upstream that have not been answered or timed out yet.
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (Server server : servers) {
+            inFlight += server.client.getInFlight();
+        }
+        return inFlight;
+    }
+
+    /**
+     * @return The number of truncated UDP answers that were fetched again over TCP.
+     */
+    public long getTcpFallbacks() {
+        long fallbacks = 0;
+        for (Server server : servers) {
+            fallbacks += server.client.getTcpFallbacks();
+        }
+        return fallbacks;
+    }
+
+    /**
+     * @return The number of hedged queries sent to a second (or later) server.
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return The number of queries answered by a hedged query rather than the first server.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return The number of queries that shared the upstream answer of an identical in-flight query.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public Server[] getServers() {
+        return servers.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Server server : servers) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(server.getName());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Server server : servers) {
+            server.client.close();
+        }
+        timerWheel.close();
+    }
+
+    /**
+     * Orders the servers for one query: at most one half-open server due for a probe first (its hedge
+     * protects the client), then the healthy servers from fastest to slowest, then the open ones as a
+     * last resort.
+     */
+    private Server[] order(long now) {
+        Server[] order = new Server[servers.length];
+        int[] states = new int[servers.length]; // read once, breakers change concurrently
+        int probe = -1;
+        for (int i = 0; i < servers.length; i++) {
+            states[i] = servers[i].getState(now);
+            if (probe < 0 && states[i] == Server.HALF_OPEN && servers[i].probing.compareAndSet(false, true)) {
+                probe = i;
+            }
+        }
+        int count = 0;
+        if (probe >= 0) {
+            order[count++] = servers[probe];
+        }
+        int first = count;
+        for (int s = 0; s < servers.length; s++) {
+            if (states[s] == Server.CLOSED) {
+                // Insertion sort by smoothed RTT; servers without samples keep their configured order after
+                // the measured ones, and get measured by hedged queries.
+                Server server = servers[s];
+                int i = count++;
+                while (i > first && order[i - 1].rankRtt() > server.rankRtt()) {
+                    order[i] = order[i - 1];
+                    i--;
+                }
+                order[i] = server;
+            }
+        }
+        for (int s = 0; s < servers.length; s++) {
+            if (states[s] != Server.CLOSED && s != probe) {
+                order[count++] = servers[s];
+            }
+        }
+        return order;
+    }
+
+    /**
+     * One upstream server: its client, RTT estimate and circuit breaker.
+     */
+    static final class Server {
+        static final int CLOSED = 0;    // healthy, takes queries
+        static final int OPEN = 1;      // failing, only used if every server is failing
+        static final int HALF_OPEN = 2; // cool-down over, the next query probes it
+
+        final UpstreamClient client;
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private volatile long openUntil; // System.nanoTime() at which an open breaker half-opens, 0 if closed
+        private volatile long srtt;      // smoothed RTT in microseconds, 0 until the first sample
+        private volatile long rttvar;    // smoothed mean deviation of the RTT in microseconds
+        private volatile long lastAnswerSent; // System.nanoTime() at which the newest answered query was sent
+        private final LongAdder answers = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+
+        Server(UpstreamClient client) {
+            this.client = client;
+            this.lastAnswerSent = System.nanoTime();
+        }
+
+        public String getName() {
+            InetSocketAddress address = client.getServerAddress();
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+
+        int getState(long now) {
+            long until = openUntil;
+            return until == 0 ? CLOSED : now - until < 0 ? OPEN : HALF_OPEN;
+        }
+
+        public int getState() {
+            return getState(System.nanoTime());
+        }
+
+        private long rankRtt() {
+            long rtt = srtt;
+            return rtt == 0 ? Long.MAX_VALUE : rtt;
+        }
+
+        public long getSmoothedRttMicros() {
+            return srtt;
+        }
+
+        public long getAnswers() {
+            return answers.sum();
+        }
+
+        public long getFailures() {
+            return failed.sum();
+        }
+
+        /**
+         * @return How long to wait for this server before hedging, in milliseconds.
+         */
+        long hedgeDelayMillis(long timeoutMillis) {
+            long rtt = srtt;
+            long delay = rtt == 0 ? INITIAL_HEDGE_MILLIS : (rtt + 2 * rttvar) / 1000;
+            return Math.max(MIN_HEDGE_MILLIS, Math.min(delay, timeoutMillis / 2));
+        }
+
+        /**
+         * Folds an RTT sample into the estimate (RFC 6298 gains of 1/8 and 1/4) and closes the breaker.
+         * @param sent When the answered query was sent (System.nanoTime()).
+         */
+        synchronized void recordAnswer(long sent, long rttMicros, int debugLevel) {
+            if (srtt == 0) {
+                srtt = Math.max(1, rttMicros);
+                rttvar = rttMicros / 2;
+            } else {
+                rttvar += (Math.abs(srtt - rttMicros) - rttvar) / 4;
+                srtt = Math.max(1, srtt + (rttMicros - srtt) / 8);
+            }
+            answers.increment();
+            if (sent - lastAnswerSent > 0) {
+                lastAnswerSent = sent;
+            }
+            failures.set(0);
+            if (openUntil != 0) {
+                openUntil = 0;
+                if (debugLevel >= 1) {
+                    System.out.println("Upstream " + getName() + " is answering again.");
+                }
+            }
+            probing.set(false);
+        }
+
+        /**
+         * Counts a timeout or error and opens the breaker after too many in a row, or when a probe fails.
+         * Timeouts arrive long after the query was sent, so a failure only counts towards the breaker if
+         * no query sent after it has been answered since. Errors on the relay's side only end a probe.
+         * Synchronized with recordAnswer(), so a late timeout cannot reopen a breaker that an answer to a
+         * newer query is closing.
+         * @param sent When the failed query was sent (System.nanoTime()).
+         * @param local true if the query failed before it reached the server.
+         */
+        synchronized void recordFailure(long sent, boolean local, int debugLevel) {
+            if (local) {
+                probing.set(false); // not the server's fault; let the next query probe it
+                return;
+            }
+            failed.increment();
+            if (sent - lastAnswerSent < 0) {
+                probing.set(false);
+                return;
+            }
+            int count = failures.incrementAndGet();
+            boolean probe = probing.getAndSet(false);
+            if (count >= FAILURE_THRESHOLD || probe || openUntil != 0) {
+                long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS);
+                openUntil = until == 0 ? 1 : until;
+                if (debugLevel >= 1 && count == FAILURE_THRESHOLD) {
+                    System.out.println("Upstream " + getName() + " failed " + count
+                            + " queries in a row; taking it out of rotation for " + OPEN_MILLIS + " ms.");
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one forwarded query across servers. All fields are guarded by the Attempt's monitor.
+     */
+    private final class Attempt {
+        final byte[] query;
+        final Server[] order;
+        final long deadline; // System.nanoTime() after which no more servers are tried
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        int next;            // index of the next server to try
+        int outstanding;     // queries sent and not yet completed
+        byte[] badAnswer;    // the last SERVFAIL or REFUSED answer, relayed if nothing better arrives
+        Throwable error;     // the last timeout or I/O error
+        TimerWheel.Timeout hedgeTimer;
+
+        Attempt(byte[] query, Server[] order) {
+            this.query = query;
+            this.order = order;
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        /**
+         * Sends the query to the next server and arms the hedge timer for the one after it.
+         */
+        void sendNext() {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (next >= order.length || remainingMillis <= 0) {
+                finishIfDone();
+                return;
+            }
+            int index = next++;
+            Server server = order[index];
+            outstanding++;
+            if (index > 0) {
+                hedges.increment();
+                if (debugLevel >= 2) {
+                    System.out.println(" -> Hedging query to upstream " + server.getName());
+                }
+            }
+            if (hedgeTimer != null) {
+                hedgeTimer.cancel();
+                hedgeTimer = null;
+            }
+            if (hedging && next < order.length) {
+                hedgeTimer = timerWheel.schedule(this::hedge, server.hedgeDelayMillis(timeoutMillis));
+            }
+            long sent = System.nanoTime();
+            server.client.query(query, remainingMillis)
+                    .whenComplete((response, e) -> onResult(server, index, sent, response, e));
+        }
+
+        private synchronized void hedge() {
+            hedgeTimer = null;
+            if (!result.isDone()) {
+                sendNext();
+            }
+        }
+
+        private void onResult(Server server, int index, long sent, byte[] response, Throwable e) {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                server.recordFailure(sent, cause instanceof UpstreamClient.LocalQueryException, debugLevel);
+            } else {
+                server.recordAnswer(sent, (System.nanoTime() - sent) / 1000, debugLevel);
+            }
+            synchronized (this) {
+                outstanding--;
+                if (result.isDone()) {
+                    return; // a faster server already answered; this answer only updated the RTT estimate
+                }
+                int rcode = response != null ? response[3] & 0x0F : -1;
+                if (response != null && rcode != 2 && rcode != 5) {
+                    if (hedgeTimer != null) {
+                        hedgeTimer.cancel();
+                    }
+                    if (index > 0) {
+                        hedgeWins.increment();
+                    }
+                    result.complete(response);
+                    return;
+                }
+                if (response != null) {
+                    badAnswer = response;
+                } else {
+                    error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                }
+                // Failed or answered SERVFAIL/REFUSED: try the next server now instead of at the hedge deadline.
+                sendNext();
+            }
+        }
+
+        private void finishIfDone() {
+            if (outstanding > 0 || result.isDone()) {
+                return;
+            }
+            if (badAnswer != null) {
+                result.complete(badAnswer);
+            } else {
+                result.completeExceptionally(error != null ? error : new SocketTimeoutException("Upstream query timed out"));
+            }
+        }
+    }
+
+    /**
+     * What makes two queries interchangeable upstream: the name (case-insensitive), type and class, and
+     * the flags that change the answer (RD, CD, whether there is an EDNS0 OPT record and its DO bit).
+     */
+    private static final class FlightKey {
+        private final byte[] name;
+        private final int type;
+        private final int queryClass;
+        private final int flags;
+        private final int hash;
+
+        private FlightKey(byte[] name, int type, int queryClass, int flags, int hash) {
+            this.name = name;
+            this.type = type;
+            this.queryClass = queryClass;
+            this.flags = flags;
+            this.hash = hash;
+        }
+
+        /**
+         * @return The key of a query, or null if it is not a plain single-question query.
+         */
+        static FlightKey of(byte[] query) {
+            if (query.length < DNSPacketUtil.HEADER_LENGTH || DNSPacketUtil.readU16(query, 4) != 1) {
+                return null;
+            }
+            int nameEnd = DNSPacketUtil.skipName(query, DNSPacketUtil.HEADER_LENGTH, query.length);
+            if (nameEnd < 0 || nameEnd + 4 > query.length) {
+                return null;
+            }
+            byte[] name = new byte[nameEnd - DNSPacketUtil.HEADER_LENGTH];
+            for (int i = 0; i < name.length; i++) {
+                name[i] = LocalRecordTable.toLower(query[DNSPacketUtil.HEADER_LENGTH + i]);
+            }
+            int flags = (query[2] & 0x01) | (query[3] & 0x10); // RD, CD
+            int opt = DNSPacketUtil.findOpt(query, nameEnd + 4, query.length);
+            if (opt >= 0) {
+                flags |= 0x200; // EDNS0: the answer carries an OPT record only if the query did
+                if ((query[opt + 6] & 0x80) != 0) {
+                    flags |= 0x100; // DO
+                }
+            }
+            int type = DNSPacketUtil.readU16(query, nameEnd);
+            int queryClass = DNSPacketUtil.readU16(query, nameEnd + 2);
+            int hash = ((Arrays.hashCode(name) * 31 + type) * 31 + queryClass) * 31 + flags;
+            return new FlightKey(name, type, queryClass, flags, hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FlightKey)) {
+                return false;
+            }
+            FlightKey other = (FlightKey) o;
+            return hash == other.hash && type == other.type && queryClass == other.queryClass
+                    && flags == other.flags && Arrays.equals(name, other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
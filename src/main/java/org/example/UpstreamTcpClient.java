@@ -0,0 +1,318 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * UpstreamTcpClient keeps a few persistent TCP connections to one upstream server and pipelines queries
+ * over them (RFC 7766): every query is written with its two-byte length prefix as soon as it is queued,
+ * and answers are matched by transaction ID in whatever order they arrive. It carries the answers that
+ * were truncated over UDP, so a large response costs one round trip on a warm connection.
+ * <p>
+ * Each connection has a writer thread, which also (re)connects, and a reader thread per socket. Callers
+ * never block. A connection the server closed is reopened for the next query, and queries that were
+ * sent on it are retried once on the new one. A query that is not answered in time fails on its own; the
+ * connection is only given up when the server has sent nothing at all for a while after a query was
+ * written to it.
+ */
+class UpstreamTcpClient implements Closeable {
+    private static final int MAX_ID_ATTEMPTS = 16;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long STALL_TIMEOUT_MILLIS = 3000; // silence after a write that closes a connection
+
+    private final InetSocketAddress serverAddress;
+    private final TimerWheel timerWheel;
+    private final int debugLevel;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final LongAdder queries = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * @param serverAddress The upstream DNS server.
+     * @param connectionCount The number of persistent connections to spread queries over.
+     * @param timerWheel The timer wheel that fails unanswered queries.
+     * @param debugLevel The debug level (0, 1 or 2).
+     */
+    public UpstreamTcpClient(InetSocketAddress serverAddress, int connectionCount, TimerWheel timerWheel,
+                             int debugLevel) {
+        this.serverAddress = serverAddress;
+        this.timerWheel = timerWheel;
+        this.debugLevel = debugLevel;
+        this.connections = new Connection[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new Connection(i);
+        }
+    }
+
+    /**
+     * Sends a query over TCP.
+     * @param query The DNS query packet from the client. It is not modified.
+     * @param questionEnd The offset just past the question section.
+     * @param timeoutMillis How long to wait for the answer.
+     * @return A future completed with the response (carrying the client's transaction ID), or completed
+     *         exceptionally on timeout or connection failure.
+     */
+    public CompletableFuture<byte[]> query(byte[] query, int questionEnd, long timeoutMillis) {
+        queries.increment();
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        Connection connection = connections[Math.floorMod(nextConnection.getAndIncrement(), connections.length)];
+        connection.submit(query, questionEnd, timeoutMillis, future);
+        return future;
+    }
+
+    /**
+     * @return The number of queries sent over TCP.
+     */
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection connection : connections) {
+            connection.writer.interrupt();
+            connection.fail(connection.channel, new UpstreamClient.LocalQueryException("Upstream TCP client closed"));
+        }
+    }
+
+    /**
+     * One query waiting for its answer.
+     */
+    private static final class Pending {
+        final int id;
+        final int clientId;
+        final byte[] question;
+        final byte[] message; // length prefix followed by the query with the in-flight ID
+        final CompletableFuture<byte[]> future;
+        volatile SocketChannel sentOn; // the connection the query was written to, null while queued
+        boolean retried;               // only touched by fail(), under the connection's lock
+        TimerWheel.Timeout timeout;    // set before the query is published in the pending table
+
+        Pending(int id, int clientId, byte[] question, byte[] message, CompletableFuture<byte[]> future) {
+            this.id = id;
+            this.clientId = clientId;
+            this.question = question;
+            this.message = message;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A persistent connection with its pending table, outbound queue and writer thread.
+     */
+    private final class Connection {
+        final int index;
+        final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<>();
+        final BlockingQueue<Pending> outbound = new LinkedBlockingQueue<>();
+        final Thread writer;
+        final AtomicBoolean stallCheckArmed = new AtomicBoolean();
+        volatile SocketChannel channel;
+        volatile long lastRead;         // System.nanoTime() at which bytes were last read from the channel
+        volatile long firstUnreadWrite; // System.nanoTime() of the first write since lastRead, 0 if none
+
+        Connection(int index) {
+            this.index = index;
+            writer = new Thread(this::writeLoop, "dns-upstream-tcp-writer-" + index);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void submit(byte[] query, int questionEnd, long timeoutMillis, CompletableFuture<byte[]> future) {
+            int clientId = DNSPacketUtil.readU16(query, 0);
+            byte[] question = Arrays.copyOfRange(query, DNSPacketUtil.HEADER_LENGTH, questionEnd);
+            byte[] message = new byte[query.length + 2];
+            DNSPacketUtil.writeU16(message, 0, query.length);
+            System.arraycopy(query, 0, message, 2, query.length);
+
+            // Claim a random unused in-flight ID, as over UDP. The timeout is armed before the claim is
+            // published, so the reader always sees it.
+            Pending p = null;
+            for (int attempt = 0; attempt < MAX_ID_ATTEMPTS && p == null; attempt++) {
+                int candidate = ThreadLocalRandom.current().nextInt(0x10000);
+                Pending claim = new Pending(candidate, clientId, question, message, future);
+                claim.timeout = timerWheel.schedule(() -> {
+                    // Only this query fails; the others pipelined on the connection keep waiting.
+                    if (pending.remove(claim.id, claim)) {
+                        claim.future.completeExceptionally(new SocketTimeoutException("Upstream TCP query timed out"));
+                    }
+                }, timeoutMillis);
+                if (pending.putIfAbsent(candidate, claim) == null) {
+                    p = claim;
+                } else {
+                    claim.timeout.cancel();
+                }
+            }
+            if (p == null) {
+                future.completeExceptionally(new UpstreamClient.LocalQueryException("No free upstream TCP transaction ID"));
+                return;
+            }
+            DNSPacketUtil.writeU16(message, 2, p.id);
+            outbound.add(p);
+        }
+
+        private void writeLoop() {
+            while (!closed) {
+                Pending p;
+                try {
+                    p = outbound.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (p.future.isDone()) {
+                    continue; // timed out while queued
+                }
+                SocketChannel current = channel;
+                try {
+                    if (current == null) {
+                        current = connect();
+                    }
+                    p.sentOn = current;
+                    long writeStart = System.nanoTime(); // before the write, so any answer reads after it
+                    ByteBuffer buffer = ByteBuffer.wrap(p.message);
+                    while (buffer.hasRemaining()) {
+                        current.write(buffer);
+                    }
+                    if (firstUnreadWrite == 0 || lastRead - firstUnreadWrite >= 0) {
+                        firstUnreadWrite = writeStart;
+                    }
+                    if (stallCheckArmed.compareAndSet(false, true)) {
+                        scheduleStallCheck(current, STALL_TIMEOUT_MILLIS);
+                    }
+                } catch (IOException e) {
+                    if (debugLevel >= 1) {
+                        System.err.println("Upstream TCP connection to " + serverAddress + " failed: " + e.getMessage());
+                    }
+                    if (current != null) {
+                        fail(current, e);
+                    } else if (pending.remove(p.id, p)) {
+                        p.timeout.cancel();
+                        p.future.completeExceptionally(e); // could not connect
+                    }
+                }
+            }
+        }
+
+        private SocketChannel connect() throws IOException {
+            SocketChannel socket = SocketChannel.open();
+            try {
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                socket.socket().connect(serverAddress, CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            if (debugLevel >= 1) {
+                System.out.println("Upstream TCP connection " + index + " to " + serverAddress + " opened.");
+            }
+            lastRead = System.nanoTime();
+            firstUnreadWrite = 0;
+            channel = socket;
+            Thread reader = new Thread(() -> readLoop(socket), "dns-upstream-tcp-reader-" + index);
+            reader.setDaemon(true);
+            reader.start();
+            return socket;
+        }
+
+        private void readLoop(SocketChannel socket) {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+            try {
+                while (true) {
+                    lengthBuffer.clear();
+                    readFully(socket, lengthBuffer);
+                    ByteBuffer messageBuffer = ByteBuffer.allocate(DNSPacketUtil.readU16(lengthBuffer.array(), 0));
+                    readFully(socket, messageBuffer);
+                    byte[] data = messageBuffer.array();
+                    if (data.length < DNSPacketUtil.HEADER_LENGTH || (data[2] & 0x80) == 0) {
+                        continue; // Too short or not a response.
+                    }
+                    Pending p = pending.get(DNSPacketUtil.readU16(data, 0));
+                    if (p == null || !UpstreamClient.questionMatches(data, data.length, p.question)
+                            || !pending.remove(p.id, p)) {
+                        continue; // Late or duplicate answer.
+                    }
+                    p.timeout.cancel();
+                    DNSPacketUtil.writeU16(data, 0, p.clientId);
+                    p.future.complete(data);
+                }
+            } catch (IOException e) {
+                fail(socket, e);
+            }
+        }
+
+        private void readFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (socket.read(buffer) < 0) {
+                    throw new EOFException("Upstream closed the TCP connection");
+                }
+                lastRead = System.nanoTime();
+            }
+        }
+
+        private void scheduleStallCheck(SocketChannel socket, long delayMillis) {
+            timerWheel.schedule(() -> checkStall(socket), delayMillis);
+        }
+
+        /**
+         * Runs on the timer wheel while queries written to the connection may be waiting. Closes the
+         * connection if the server has sent nothing since the first of them was written, for longer than
+         * the stall timeout; otherwise checks again later, or stops until the next write.
+         */
+        private void checkStall(SocketChannel socket) {
+            stallCheckArmed.set(false); // a write from now on re-arms the check, or we see its timestamp below
+            if (socket != channel || closed) {
+                return;
+            }
+            long since = firstUnreadWrite;
+            if (since == 0 || lastRead - since >= 0) {
+                return; // the server has answered something since the last write
+            }
+            long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+            if (silentMillis >= STALL_TIMEOUT_MILLIS) {
+                fail(socket, new SocketTimeoutException("Upstream TCP connection stalled"));
+            } else if (stallCheckArmed.compareAndSet(false, true)) {
+                scheduleStallCheck(socket, STALL_TIMEOUT_MILLIS - silentMillis);
+            }
+        }
+
+        /**
+         * Closes a connection once. Queries that were sent on it are queued again for a new connection, or
+         * failed if they were already retried.
+         */
+        synchronized void fail(SocketChannel socket, IOException cause) {
+            if (socket == null || !socket.isOpen()) {
+                return;
+            }
+            if (channel == socket) {
+                channel = null;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+            if (debugLevel >= 2) {
+                System.out.println("Upstream TCP connection " + index + " closed: " + cause.getMessage());
+            }
+            for (Pending p : pending.values()) {
+                if (p.sentOn != socket) {
+                    continue;
+                }
+                if (!p.retried && !closed) {
+                    p.retried = true;
+                    p.sentOn = null;
+                    outbound.add(p);
+                } else if (pending.remove(p.id, p)) {
+                    p.timeout.cancel();
+                    p.future.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+}
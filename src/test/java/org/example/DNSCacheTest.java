@@ -0,0 +1,183 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DNSCacheTest {
+    private static final byte[] ADDRESS = {10, 0, 0, 1};
+
+    @Test
+    void hitCarriesTheClientsIdAndLetterCase() {
+        DNSCache cache = new DNSCache(100);
+        byte[] first = TestPackets.query("www.Example.com", LocalRecordTable.TYPE_A, 0x1111);
+        cache.put("www.example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.answer(first, 300, ADDRESS));
+
+        byte[] second = TestPackets.query("WWW.example.COM", LocalRecordTable.TYPE_A, 0x2222);
+        byte[] hit = cache.get("www.example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN,
+                DNSCache.NO_EDNS, second);
+
+        assertNotNull(hit);
+        assertEquals(0x2222, DNSPacketUtil.readU16(hit, 0));
+        byte[] name = TestPackets.wire("WWW.example.COM");
+        for (int i = 0; i < name.length; i++) {
+            assertEquals(name[i], hit[DNSPacketUtil.HEADER_LENGTH + i]);
+        }
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    void missReturnsNull() {
+        DNSCache cache = new DNSCache(100);
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+
+        assertNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                query));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void typeIsPartOfTheKey() {
+        DNSCache cache = new DNSCache(100);
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        cache.put("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.answer(query, 300, ADDRESS));
+
+        assertNull(cache.get("example.com", LocalRecordTable.TYPE_AAAA, LocalRecordTable.CLASS_IN,
+                DNSCache.NO_EDNS, TestPackets.query("example.com", LocalRecordTable.TYPE_AAAA)));
+    }
+
+    @Test
+    void ttlsAreAgedByTheTimeSpentInTheCache() throws InterruptedException {
+        DNSCache cache = new DNSCache(100);
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        cache.put("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.answer(query, 300, ADDRESS));
+
+        Thread.sleep(1100);
+        byte[] hit = cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                query);
+
+        assertNotNull(hit);
+        assertEquals(299, DNSPacketUtil.readU32(hit, TestPackets.firstTtlOffset(hit)));
+    }
+
+    @Test
+    void answerExpiresAfterItsTtl() throws InterruptedException {
+        DNSCache cache = new DNSCache(100);
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        cache.put("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.answer(query, 1, ADDRESS));
+
+        Thread.sleep(1100);
+
+        assertNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                query));
+    }
+
+    @Test
+    void negativeAnswersNeedAnSoaWithANonZeroMinimum() {
+        DNSCache cache = new DNSCache(100);
+        byte[] query = TestPackets.query("missing.example.com", LocalRecordTable.TYPE_A);
+
+        cache.put("missing.example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.negative(query, 3, -1, 0));
+        assertEquals(0, cache.size(), "NXDOMAIN without SOA");
+
+        cache.put("missing.example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.negative(query, 3, 300, 0));
+        assertEquals(0, cache.size(), "SOA MINIMUM of 0 means do not cache");
+
+        cache.put("missing.example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.negative(query, 3, 300, 60));
+        byte[] hit = cache.get("missing.example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN,
+                DNSCache.NO_EDNS, query);
+        assertNotNull(hit);
+        assertEquals(3, hit[3] & 0x0F);
+    }
+
+    @Test
+    void nodataIsCachedLikeNxdomain() {
+        DNSCache cache = new DNSCache(100);
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_AAAA);
+        cache.put("example.com", LocalRecordTable.TYPE_AAAA, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                TestPackets.negative(query, 0, 300, 60));
+
+        assertNotNull(cache.get("example.com", LocalRecordTable.TYPE_AAAA, LocalRecordTable.CLASS_IN,
+                DNSCache.NO_EDNS, query));
+    }
+
+    @Test
+    void servfailAndTruncatedResponsesAreNotCached() {
+        DNSCache cache = new DNSCache(100);
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] servfail = TestPackets.negative(query, 2, 300, 60);
+        byte[] truncated = TestPackets.answer(query, 300, ADDRESS);
+        truncated[2] |= 0x02;
+
+        cache.put("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS, servfail);
+        cache.put("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS, truncated);
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void leastRecentlyUsedEntriesAreEvicted() {
+        DNSCache cache = new DNSCache(16); // one entry per segment
+        for (int i = 0; i < 100; i++) {
+            String name = "host" + i + ".example.com";
+            byte[] query = TestPackets.query(name, LocalRecordTable.TYPE_A);
+            cache.put(name, LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.NO_EDNS,
+                    TestPackets.answer(query, 300, ADDRESS));
+        }
+
+        assertTrue(cache.size() <= 16);
+        assertEquals(100 - cache.size(), cache.getEvictions());
+    }
+
+    @Test
+    void ednsStateIsPartOfTheKey() {
+        DNSCache cache = new DNSCache(100);
+        byte[] plain = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] dnssec = TestPackets.withOpt(plain, 1232, true);
+        DNSQuestion question = new DNSQuestion();
+        assertTrue(question.parse(dnssec, dnssec.length));
+        cache.put("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, DNSCache.flagsOf(question),
+                TestPackets.withOpt(TestPackets.answer(plain, 300, ADDRESS), 1232, true));
+
+        assertEquals(DNSCache.EDNS_DO | DNSCache.RD, DNSCache.flagsOf(question));
+        assertNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN,
+                DNSCache.NO_EDNS | DNSCache.RD, plain));
+        assertNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN,
+                DNSCache.EDNS | DNSCache.RD, plain));
+        assertNotNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN,
+                DNSCache.EDNS_DO | DNSCache.RD, dnssec));
+    }
+
+    @Test
+    void rdAndCdBitsArePartOfTheKey() {
+        DNSCache cache = new DNSCache(100);
+        byte[] checkingDisabled = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        checkingDisabled[3] |= 0x10; // CD
+        byte[] noRecursion = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        noRecursion[2] &= ~0x01; // RD
+        DNSQuestion question = new DNSQuestion();
+        assertTrue(question.parse(checkingDisabled, checkingDisabled.length));
+        int flags = DNSCache.flagsOf(question);
+        cache.put("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, flags,
+                TestPackets.answer(checkingDisabled, 300, ADDRESS));
+
+        assertEquals(DNSCache.NO_EDNS | DNSCache.RD | DNSCache.CD, flags);
+        assertTrue(question.parse(noRecursion, noRecursion.length));
+        assertEquals(DNSCache.NO_EDNS, DNSCache.flagsOf(question));
+        assertNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN,
+                DNSCache.NO_EDNS | DNSCache.RD, TestPackets.query("example.com", LocalRecordTable.TYPE_A)),
+                "an unvalidated answer is not served to a client that wants validation");
+        assertNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN,
+                DNSCache.NO_EDNS, noRecursion));
+        assertNotNull(cache.get("example.com", LocalRecordTable.TYPE_A, LocalRecordTable.CLASS_IN, flags,
+                checkingDisabled));
+    }
+}
@@ -0,0 +1,79 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DNSPacketUtilTest {
+    private static final byte[] ADDRESS = {10, 0, 0, 1};
+
+    private static int questionEnd(byte[] message) {
+        return DNSPacketUtil.skipName(message, DNSPacketUtil.HEADER_LENGTH, message.length) + 4;
+    }
+
+    @Test
+    void integersAreBigEndian() {
+        byte[] data = new byte[6];
+        DNSPacketUtil.writeU16(data, 0, 0xABCD);
+        DNSPacketUtil.writeU32(data, 2, 0xFEDCBA98L);
+
+        assertArrayEquals(new byte[]{(byte) 0xAB, (byte) 0xCD, (byte) 0xFE, (byte) 0xDC, (byte) 0xBA, (byte) 0x98},
+                data);
+        assertEquals(0xABCD, DNSPacketUtil.readU16(data, 0));
+        assertEquals(0xFEDCBA98L, DNSPacketUtil.readU32(data, 2));
+    }
+
+    @Test
+    void skipNameHandlesLabelsPointersAndGarbage() {
+        byte[] name = TestPackets.wire("www.example.com");
+
+        assertEquals(name.length, DNSPacketUtil.skipName(name, 0, name.length));
+        assertEquals(2, DNSPacketUtil.skipName(new byte[]{(byte) 0xC0, 0x0C}, 0, 2));
+        assertEquals(-1, DNSPacketUtil.skipName(new byte[]{(byte) 0xC0}, 0, 1));
+        assertEquals(-1, DNSPacketUtil.skipName(new byte[]{0x40, 0}, 0, 2), "reserved label type");
+        assertEquals(-1, DNSPacketUtil.skipName(name, 0, name.length - 1), "missing root label");
+    }
+
+    @Test
+    void findOptSkipsTheAnswerSection() {
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] response = TestPackets.withOpt(TestPackets.answer(query, 300, ADDRESS), 1232, true);
+
+        int opt = DNSPacketUtil.findOpt(response, questionEnd(response), response.length);
+
+        assertEquals(response.length - DNSPacketUtil.OPT_RECORD_LENGTH + 1, opt);
+        assertEquals(1232, DNSPacketUtil.readU16(response, opt + 2));
+        assertEquals(-1, DNSPacketUtil.findOpt(query, questionEnd(query), query.length));
+    }
+
+    @Test
+    void findOptRejectsRecordsPastTheEnd() {
+        byte[] query = TestPackets.withOpt(TestPackets.query("example.com", LocalRecordTable.TYPE_A), 1232, false);
+
+        assertEquals(-1, DNSPacketUtil.findOpt(query, questionEnd(query), query.length - 1));
+    }
+
+    @Test
+    void removeOptDropsTheRecordAndDecrementsArcount() {
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] plain = TestPackets.answer(query, 300, ADDRESS);
+        byte[] response = TestPackets.withOpt(plain, 1232, false);
+        byte[] padded = new byte[response.length + 20];
+        System.arraycopy(response, 0, padded, 0, response.length);
+
+        byte[] stripped = DNSPacketUtil.removeOpt(padded, questionEnd(response), response.length);
+
+        assertArrayEquals(plain, stripped);
+    }
+
+    @Test
+    void removeOptCopiesMessagesWithoutOpt() {
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] response = TestPackets.answer(query, 300, ADDRESS);
+
+        byte[] copy = DNSPacketUtil.removeOpt(response, questionEnd(response), response.length);
+
+        assertNotSame(response, copy);
+        assertArrayEquals(response, copy);
+    }
+}
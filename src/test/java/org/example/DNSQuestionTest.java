@@ -0,0 +1,97 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DNSQuestionTest {
+
+    @Test
+    void parsesTheFirstQuestionInPlace() {
+        byte[] query = TestPackets.query("WWW.Example.com", LocalRecordTable.TYPE_AAAA, 0xBEEF);
+        DNSQuestion question = new DNSQuestion();
+
+        assertTrue(question.parse(query, query.length));
+        assertSame(query, question.getData());
+        assertEquals(0xBEEF, question.getTransactionID());
+        assertTrue(question.isRecursionDesired());
+        assertEquals(DNSPacketUtil.HEADER_LENGTH, question.getNameStart());
+        assertEquals(query.length - 4, question.getNameEnd());
+        assertEquals(query.length, question.getQuestionEnd());
+        assertEquals(LocalRecordTable.TYPE_AAAA, question.getQueryType());
+        assertEquals(LocalRecordTable.CLASS_IN, question.getQueryClass());
+        assertEquals("www.example.com", question.getDomainName());
+        assertFalse(question.hasEdns());
+    }
+
+    @Test
+    void nameHashIgnoresLetterCase() {
+        byte[] upper = TestPackets.query("WWW.EXAMPLE.COM", LocalRecordTable.TYPE_A);
+        byte[] lower = LocalRecordTable.nameToWire("www.example.com");
+        DNSQuestion question = new DNSQuestion();
+
+        assertTrue(question.parse(upper, upper.length));
+        assertEquals(LocalRecordTable.hashName(lower, 0, lower.length), question.getNameHash());
+    }
+
+    @Test
+    void rejectsResponsesAndQueriesWithoutQuestion() {
+        DNSQuestion question = new DNSQuestion();
+        byte[] response = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        response[2] |= (byte) 0x80;
+        byte[] empty = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        DNSPacketUtil.writeU16(empty, 4, 0);
+
+        assertFalse(question.parse(response, response.length));
+        assertFalse(question.parse(empty, empty.length));
+        assertFalse(question.parse(new byte[11], 11));
+    }
+
+    @Test
+    void rejectsCompressedAndTruncatedNames() {
+        DNSQuestion question = new DNSQuestion();
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] pointer = query.clone();
+        pointer[DNSPacketUtil.HEADER_LENGTH] = (byte) 0xC0;
+
+        assertFalse(question.parse(pointer, pointer.length));
+        assertFalse(question.parse(query, query.length - 2), "QTYPE/QCLASS cut off");
+        assertFalse(question.parse(query, DNSPacketUtil.HEADER_LENGTH + 5), "name cut off");
+    }
+
+    @Test
+    void readsTheEdnsOptRecord() {
+        byte[] query = TestPackets.withOpt(TestPackets.query("example.com", LocalRecordTable.TYPE_A), 4096, true);
+        DNSQuestion question = new DNSQuestion();
+
+        assertTrue(question.parse(query, query.length));
+        assertTrue(question.hasEdns());
+        assertTrue(question.isDnssecOk());
+        assertEquals(0, question.getEdnsVersion());
+        assertEquals(1232, question.getUdpLimit(1232));
+    }
+
+    @Test
+    void udpLimitIs512WithoutEdnsAndNeverLess() {
+        DNSQuestion question = new DNSQuestion();
+        byte[] plain = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] tiny = TestPackets.withOpt(plain, 100, false);
+
+        assertTrue(question.parse(plain, plain.length));
+        assertEquals(DNSPacketUtil.MIN_UDP_PAYLOAD, question.getUdpLimit(1232));
+        assertTrue(question.parse(tiny, tiny.length));
+        assertEquals(DNSPacketUtil.MIN_UDP_PAYLOAD, question.getUdpLimit(1232));
+    }
+
+    @Test
+    void reparsingClearsTheEdnsStateOfThePreviousQuery() {
+        DNSQuestion question = new DNSQuestion();
+        byte[] edns = TestPackets.withOpt(TestPackets.query("example.com", LocalRecordTable.TYPE_A), 1232, true);
+        byte[] plain = TestPackets.query("example.org", LocalRecordTable.TYPE_A);
+
+        assertTrue(question.parse(edns, edns.length));
+        assertTrue(question.parse(plain, plain.length));
+        assertFalse(question.hasEdns());
+        assertFalse(question.isDnssecOk());
+    }
+}
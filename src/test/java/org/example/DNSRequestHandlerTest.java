@@ -0,0 +1,121 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class DNSRequestHandlerTest {
+    private static final int QUERIES = 10_000;
+    private static final InetSocketAddress CLIENT = new InetSocketAddress(InetAddress.getLoopbackAddress(), 40000);
+
+    @TempDir
+    File dir;
+
+    private RelayContext context() throws IOException {
+        File dataFile = new File(dir, "dnsrelay.txt");
+        Files.writeString(dataFile.toPath(), "10.0.0.1 host.example.com\n0.0.0.0 ads.example.com\n");
+        LocalDatabase database = LocalDatabase.load(dataFile.getPath(), false, 0);
+        assertNotNull(database);
+        return new RelayContext(database, null, null, null, null, 1232, RelayContext.OVERLOAD_REFUSE, false, 0);
+    }
+
+    private static ExecutorService virtualThreads() {
+        try {
+            // Looked up reflectively, like DNSRelay does, so the tests still build for Java 17.
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            assumeTrue(false, "virtual threads need Java 21");
+            return null;
+        }
+    }
+
+    private static void answerOnVirtualThreads(RelayContext context, ResponseSender sender)
+            throws InterruptedException {
+        ExecutorService executor = virtualThreads();
+        for (int i = 0; i < QUERIES; i++) {
+            byte[] query = TestPackets.query(i % 2 == 0 ? "host.example.com" : "ads.example.com",
+                    LocalRecordTable.TYPE_A, i);
+            executor.execute(new DNSRequestHandler(context, sender, query, CLIENT));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void localAnswersOnVirtualThreadsReuseResponseBuffers() throws IOException, InterruptedException {
+        RelayContext context = context();
+        LongAdder answers = new LongAdder();
+
+        answerOnVirtualThreads(context, (response, length, client) -> answers.increment());
+
+        assertEquals(QUERIES, answers.sum());
+        // One buffer per query answered at the same moment, not one per query (or per virtual thread).
+        long allocated = context.getResponseBuffers(false).getAllocated();
+        assertTrue(allocated <= 4L * Runtime.getRuntime().availableProcessors(), "allocated " + allocated + " buffers");
+        assertEquals(0, context.getResponseBuffers(true).getAllocated());
+    }
+
+    @Test
+    void tcpAnswersUseTheStreamBuffers() throws IOException, InterruptedException {
+        RelayContext context = context();
+        LongAdder answers = new LongAdder();
+        ResponseSender stream = new ResponseSender() {
+            @Override
+            public void send(byte[] response, int length, InetSocketAddress client) {
+                assertEquals(DNSPacketUtil.MAX_TCP_MESSAGE, response.length);
+                answers.increment();
+            }
+
+            @Override
+            public boolean isStream() {
+                return true;
+            }
+        };
+
+        answerOnVirtualThreads(context, stream);
+
+        assertEquals(QUERIES, answers.sum());
+        assertTrue(context.getResponseBuffers(true).getAllocated() <= 4L * Runtime.getRuntime().availableProcessors());
+        assertEquals(0, context.getResponseBuffers(false).getAllocated());
+    }
+
+    @Test
+    void encodingALocalAnswerDoesNotAllocate() throws IOException {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "needs per-thread allocation counters");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        RelayContext context = context();
+        byte[] query = TestPackets.query("host.example.com", LocalRecordTable.TYPE_A);
+        DNSQuestion question = new DNSQuestion();
+        byte[] out = new byte[DNSPacketUtil.MAX_UDP_PAYLOAD];
+        for (int i = 0; i < QUERIES; i++) { // let the JIT compile the path first
+            question.parse(query, query.length);
+            DNSRequestHandler.answerLocally(context, question, out, out.length, CLIENT);
+        }
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < QUERIES; i++) {
+            question.parse(query, query.length);
+            DNSRequestHandler.answerLocally(context, question, out, out.length, CLIENT);
+        }
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals(1, DNSPacketUtil.readU16(out, 6));
+        assertTrue(allocated < QUERIES, "allocated " + allocated + " bytes for " + QUERIES + " answers");
+    }
+}
@@ -0,0 +1,237 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DNSResponseWriterTest {
+    private static final int UDP_SIZE = 1232;
+
+    private static DNSQuestion parse(byte[] query) {
+        DNSQuestion question = new DNSQuestion();
+        assertTrue(question.parse(query, query.length));
+        return question;
+    }
+
+    private static LocalDatabase.Snapshot snapshot(LocalRecordTable.Builder builder) {
+        return new LocalDatabase.Snapshot(builder.build(false), null);
+    }
+
+    private static long lookup(LocalDatabase.Snapshot snapshot, DNSQuestion question) {
+        return snapshot.lookup(question.getData(), question.getNameStart(), question.getNameEnd(),
+                question.getNameHash());
+    }
+
+    @Test
+    void errorEchoesTheQuestionAndFlags() {
+        byte[] query = TestPackets.query("blocked.example.com", LocalRecordTable.TYPE_A, 0x4321);
+        byte[] out = new byte[512];
+
+        int length = DNSResponseWriter.writeError(parse(query), out, 3, UDP_SIZE);
+
+        assertEquals(query.length, length);
+        assertEquals(0x4321, DNSPacketUtil.readU16(out, 0));
+        assertEquals(0x85, out[2] & 0xFF, "QR, AA and RD");
+        assertEquals(0x83, out[3] & 0xFF, "RA and NXDOMAIN");
+        assertEquals(1, DNSPacketUtil.readU16(out, 4));
+        assertEquals(0, DNSPacketUtil.readU16(out, 6));
+        assertEquals(0, DNSPacketUtil.readU16(out, 10));
+        for (int i = DNSPacketUtil.HEADER_LENGTH; i < query.length; i++) {
+            assertEquals(query[i], out[i]);
+        }
+    }
+
+    @Test
+    void ednsQueriesGetAnOptRecordBack() {
+        byte[] query = TestPackets.withOpt(TestPackets.query("example.com", LocalRecordTable.TYPE_A), 4096, true);
+        DNSQuestion question = parse(query);
+        byte[] out = new byte[512];
+
+        int length = DNSResponseWriter.writeError(question, out, 2, UDP_SIZE);
+
+        assertEquals(1, DNSPacketUtil.readU16(out, 10));
+        int opt = DNSPacketUtil.findOpt(out, question.getQuestionEnd(), length);
+        assertEquals(question.getQuestionEnd() + 1, opt);
+        assertEquals(UDP_SIZE, DNSPacketUtil.readU16(out, opt + 2));
+        assertEquals(0x80, out[opt + 6] & 0xFF, "DO echoed");
+        assertEquals(opt + 10, length);
+    }
+
+    @Test
+    void localAnswerPointsToTheQuestionName() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "host.example.com", 600);
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        byte[] query = TestPackets.query("Host.Example.com", LocalRecordTable.TYPE_A);
+        DNSQuestion question = parse(query);
+        byte[] out = new byte[512];
+
+        int length = DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question),
+                UDP_SIZE, 512);
+
+        assertEquals(query.length + 16, length);
+        assertEquals(0, out[3] & 0x0F);
+        assertEquals(1, DNSPacketUtil.readU16(out, 6));
+        int record = query.length;
+        assertEquals(0xC00C, DNSPacketUtil.readU16(out, record));
+        assertEquals(LocalRecordTable.TYPE_A, DNSPacketUtil.readU16(out, record + 2));
+        assertEquals(LocalRecordTable.CLASS_IN, DNSPacketUtil.readU16(out, record + 4));
+        assertEquals(600, DNSPacketUtil.readU32(out, record + 6));
+        assertEquals(4, DNSPacketUtil.readU16(out, record + 10));
+        assertEquals(10, out[record + 12]);
+        assertEquals(1, out[record + 15]);
+    }
+
+    @Test
+    void answerOverTheLimitIsTruncated() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        for (int i = 1; i <= 40; i++) {
+            builder.add("10.0.0." + i, "many.example.com");
+        }
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        DNSQuestion question = parse(TestPackets.query("many.example.com", LocalRecordTable.TYPE_A));
+        byte[] out = new byte[4096];
+
+        int fits = DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question),
+                UDP_SIZE, 4096);
+        assertEquals(40, DNSPacketUtil.readU16(out, 6));
+        assertEquals(0, out[2] & 0x02);
+
+        int truncated = DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question),
+                UDP_SIZE, 512);
+        assertTrue(fits > 512);
+        assertEquals(question.getQuestionEnd(), truncated);
+        assertEquals(0x02, out[2] & 0x02, "TC");
+        assertEquals(0, DNSPacketUtil.readU16(out, 6));
+    }
+
+    @Test
+    void truncatedFormKeepsTheUpstreamRcodeAndSetsTc() {
+        byte[] query = TestPackets.query("example.com", LocalRecordTable.TYPE_A);
+        byte[] response = TestPackets.negative(query, 3, 300, 60);
+        byte[] out = new byte[512];
+
+        int length = DNSResponseWriter.writeTruncated(parse(query), out, response, UDP_SIZE);
+
+        assertEquals(query.length, length);
+        assertEquals(0x02, out[2] & 0x02);
+        assertEquals(3, out[3] & 0x0F);
+        assertEquals(0, DNSPacketUtil.readU16(out, 8));
+    }
+
+    @Test
+    void successiveQueriesGetTheAddressesInTurn() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "pool.example.com");
+        builder.add("10.0.0.2", "pool.example.com");
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        byte[] out = new byte[512];
+
+        for (int id = 0; id < 4; id++) {
+            byte[] query = TestPackets.query("pool.example.com", LocalRecordTable.TYPE_A, id);
+            DNSQuestion question = parse(query);
+            DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question), UDP_SIZE, 512);
+
+            assertEquals(2, DNSPacketUtil.readU16(out, 6));
+            assertEquals(1 + id % 2, out[query.length + 15], "first address of query " + id);
+        }
+    }
+
+    @Test
+    void nameWithoutRecordsOfTheTypeGetsNodata() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "host.example.com");
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        byte[] query = TestPackets.query("host.example.com", LocalRecordTable.TYPE_AAAA);
+        DNSQuestion question = parse(query);
+        byte[] out = new byte[512];
+
+        int length = DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question),
+                UDP_SIZE, 512);
+
+        assertEquals(query.length, length);
+        assertEquals(0, out[3] & 0x0F);
+        assertEquals(0, DNSPacketUtil.readU16(out, 6));
+    }
+
+    @Test
+    void aliasIsFollowedByTheLocalTarget() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.cname("www.example.com", "host.example.com", 300);
+        builder.add("10.0.0.1", "host.example.com");
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        byte[] query = TestPackets.query("www.example.com", LocalRecordTable.TYPE_A);
+        DNSQuestion question = parse(query);
+        byte[] out = new byte[512];
+
+        int length = DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question),
+                UDP_SIZE, 512);
+
+        assertEquals(2, DNSPacketUtil.readU16(out, 6));
+        int cname = query.length;
+        assertEquals(0xC00C, DNSPacketUtil.readU16(out, cname));
+        assertEquals(LocalRecordTable.TYPE_CNAME, DNSPacketUtil.readU16(out, cname + 2));
+        int target = cname + 12;
+        int address = target + DNSPacketUtil.readU16(out, cname + 10);
+        assertEquals(0xC000 | target, DNSPacketUtil.readU16(out, address), "owner points to the CNAME target");
+        assertEquals(LocalRecordTable.TYPE_A, DNSPacketUtil.readU16(out, address + 2));
+        assertEquals(address + 16, length);
+    }
+
+    @Test
+    void aliasToAnUnknownNameIsAnsweredWithTheChainSoFar() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.cname("www.example.com", "cdn.example.net", 300);
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        DNSQuestion question = parse(TestPackets.query("www.example.com", LocalRecordTable.TYPE_A));
+        byte[] out = new byte[512];
+
+        DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question), UDP_SIZE, 512);
+
+        assertEquals(0, out[3] & 0x0F);
+        assertEquals(1, DNSPacketUtil.readU16(out, 6));
+    }
+
+    @Test
+    void aliasToABlockedNameIsNxdomain() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.cname("www.example.com", "ads.example.net", 300);
+        builder.add("0.0.0.0", "ads.example.net");
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        DNSQuestion question = parse(TestPackets.query("www.example.com", LocalRecordTable.TYPE_A));
+        byte[] out = new byte[512];
+
+        DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question), UDP_SIZE, 512);
+
+        assertEquals(3, out[3] & 0x0F);
+        assertEquals(1, DNSPacketUtil.readU16(out, 6));
+    }
+
+    @Test
+    void aliasLoopEndsAfterTheChainLimit() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.cname("a.example.com", "b.example.com", 300);
+        builder.cname("b.example.com", "a.example.com", 300);
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        DNSQuestion question = parse(TestPackets.query("a.example.com", LocalRecordTable.TYPE_A));
+        byte[] out = new byte[512];
+
+        DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question), UDP_SIZE, 512);
+
+        assertEquals(8, DNSPacketUtil.readU16(out, 6), "one CNAME per followed alias");
+    }
+
+    @Test
+    void cnameQueryGetsOnlyTheAlias() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.cname("www.example.com", "host.example.com", 300);
+        builder.add("10.0.0.1", "host.example.com");
+        LocalDatabase.Snapshot snapshot = snapshot(builder);
+        DNSQuestion question = parse(TestPackets.query("www.example.com", LocalRecordTable.TYPE_CNAME));
+        byte[] out = new byte[512];
+
+        DNSResponseWriter.writeLocalAnswer(question, out, snapshot, lookup(snapshot, question), UDP_SIZE, 512);
+
+        assertEquals(1, DNSPacketUtil.readU16(out, 6));
+    }
+}
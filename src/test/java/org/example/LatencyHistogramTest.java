@@ -0,0 +1,57 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value % 50);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(49, histogram.getMax());
+        assertEquals(24, histogram.getValueAtPercentile(50));
+        assertEquals(49, histogram.getValueAtPercentile(100));
+        assertEquals(50, histogram.getCountAtOrBelow(24));
+    }
+
+    @Test
+    void largeValuesAreWithinTheBucketResolution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000_000);
+        histogram.record(-5);
+
+        long p100 = histogram.getValueAtPercentile(100);
+        assertEquals(1_000_000, p100, "capped at the maximum");
+        long upper = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(1_000_000));
+        assertTrue(upper >= 1_000_000 && upper < 1_000_000 * 1.04, "upper bound " + upper);
+        assertEquals(0, histogram.getValueAtPercentile(50), "negative values count as 0");
+        assertEquals(1_000_000, histogram.getSum());
+    }
+
+    @Test
+    void concurrentRecordsAreAllCounted() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(100 + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(400_000, histogram.getCountAtOrBelow(103));
+        assertEquals(103, histogram.getMax());
+    }
+}
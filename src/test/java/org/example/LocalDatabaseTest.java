@@ -0,0 +1,185 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalDatabaseTest {
+    @TempDir
+    File dir;
+
+    private static LocalDatabase.Snapshot snapshot(String dataFile) throws IOException {
+        LocalRecordTable base = LocalDatabase.parse(new BufferedReader(new StringReader(dataFile)), false, 0);
+        return new LocalDatabase.Snapshot(base, null);
+    }
+
+    private static LocalDatabase.Snapshot snapshot(String dataFile, LocalRecordTable.Builder overlay)
+            throws IOException {
+        LocalRecordTable base = LocalDatabase.parse(new BufferedReader(new StringReader(dataFile)), false, 0);
+        return new LocalDatabase.Snapshot(base, overlay.build(false));
+    }
+
+    private static long lookup(LocalDatabase.Snapshot snapshot, String name) {
+        byte[] wire = TestPackets.wire(name);
+        return snapshot.lookup(wire, 0, wire.length, LocalRecordTable.hashName(wire, 0, wire.length));
+    }
+
+    @Test
+    void exactNamesMatchIgnoringCase() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot("10.0.0.1 host.example.com\n0.0.0.0 ads.example.com\n");
+
+        long host = lookup(snapshot, "HOST.example.COM");
+        assertTrue(host >= 0);
+        assertFalse(snapshot.isBlocked(host));
+        assertEquals(LocalRecordTable.TYPE_A, snapshot.getAnswerType(host));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "ads.example.com")));
+        assertEquals(-1, lookup(snapshot, "other.example.com"));
+        assertEquals(-1, lookup(snapshot, "example.com"));
+    }
+
+    @Test
+    void wildcardCoversEverySubdomainButNotTheNameItself() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot("0.0.0.0 *.tracker.net\n");
+
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "a.tracker.net")));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "x.y.Z.Tracker.NET")));
+        assertEquals(-1, lookup(snapshot, "tracker.net"));
+        assertEquals(-1, lookup(snapshot, "nottracker.net"));
+        assertEquals(-1, lookup(snapshot, "a.tracker.net.evil.com"));
+    }
+
+    @Test
+    void suffixRuleCoversTheNameAndItsSubdomains() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot("0.0.0.0 .doubleclick.net\n");
+
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "doubleclick.net")));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "stats.g.doubleclick.net")));
+        assertEquals(-1, lookup(snapshot, "net"));
+    }
+
+    @Test
+    void exactRecordWinsOverWildcard() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot("0.0.0.0 *.example.com\n10.0.0.1 www.example.com\n");
+
+        long www = lookup(snapshot, "www.example.com");
+        assertFalse(snapshot.isBlocked(www));
+        assertEquals(LocalRecordTable.TYPE_A, snapshot.getAnswerType(www));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "mail.example.com")));
+    }
+
+    @Test
+    void moreSpecificWildcardWins() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot("0.0.0.0 *.example.com\n10.0.0.2 *.cdn.example.com\n");
+
+        long cdn = lookup(snapshot, "img.cdn.example.com");
+        assertTrue(cdn >= 0);
+        assertFalse(snapshot.isBlocked(cdn));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "img.example.com")));
+    }
+
+    @Test
+    void allowListOverridesBlocking() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot(
+                "0.0.0.0 .example.com\nallow good.example.com\nallow *.safe.example.com\n");
+
+        assertEquals(-1, lookup(snapshot, "good.example.com"));
+        assertEquals(-1, lookup(snapshot, "a.b.safe.example.com"));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "bad.example.com")));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "sub.good.example.com")));
+    }
+
+    @Test
+    void allowListDoesNotHideLocalAnswers() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot("10.0.0.1 www.example.com\nallow .example.com\n");
+
+        long www = lookup(snapshot, "www.example.com");
+        assertTrue(www >= 0);
+        assertEquals(LocalRecordTable.TYPE_A, snapshot.getAnswerType(www));
+    }
+
+    @Test
+    void invalidLinesAreSkipped() throws IOException {
+        LocalDatabase.Snapshot snapshot = snapshot(
+                "# comment\n\n10.0.0.300 bad.example.com\n10.0.0.1\n10.0.0.1 ok.example.com 60\n");
+
+        assertEquals(1, snapshot.size());
+        assertTrue(lookup(snapshot, "ok.example.com") >= 0);
+    }
+
+    @Test
+    void overlayReplacesAndRemovesBaseRecords() throws IOException {
+        LocalRecordTable.Builder overlay = new LocalRecordTable.Builder();
+        overlay.add("10.0.0.9", "moved.example.com");
+        overlay.remove("gone.example.com");
+        LocalDatabase.Snapshot snapshot = snapshot(
+                "10.0.0.1 moved.example.com\n10.0.0.2 gone.example.com\n10.0.0.3 kept.example.com\n", overlay);
+
+        long moved = lookup(snapshot, "moved.example.com");
+        assertEquals("10.0.0.9", snapshot.formatAnswer(moved));
+        assertEquals(-1, lookup(snapshot, "gone.example.com"));
+        assertEquals("10.0.0.3", snapshot.formatAnswer(lookup(snapshot, "kept.example.com")));
+    }
+
+    @Test
+    void overlayCanBlockAndUnblock() throws IOException {
+        LocalRecordTable.Builder overlay = new LocalRecordTable.Builder();
+        overlay.add("0.0.0.0", "*.ads.example.com");
+        overlay.allow("good.bad.example.com");
+        LocalDatabase.Snapshot snapshot = snapshot("0.0.0.0 .bad.example.com\n", overlay);
+
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "x.ads.example.com")));
+        assertEquals(-1, lookup(snapshot, "good.bad.example.com"));
+        assertTrue(snapshot.isBlocked(lookup(snapshot, "other.bad.example.com")));
+    }
+
+    @Test
+    void removingAWildcardInTheOverlayUnblocksItsSubdomains() throws IOException {
+        LocalRecordTable.Builder overlay = new LocalRecordTable.Builder();
+        overlay.remove("*.tracker.net");
+        LocalDatabase.Snapshot snapshot = snapshot("0.0.0.0 *.tracker.net\n", overlay);
+
+        assertEquals(-1, lookup(snapshot, "a.tracker.net"));
+    }
+
+    @Test
+    void consoleOperationsOverrideTheDiffFileAndSurviveFolds()
+            throws IOException, InterruptedException, ExecutionException {
+        File dataFile = new File(dir, "dnsrelay.txt");
+        Files.writeString(dataFile.toPath(), "10.0.0.1 a.example.com\n");
+        Files.writeString(new File(dir, "dnsrelay.txt.diff").toPath(),
+                "+ 10.0.0.2 a.example.com\n+ 10.0.0.3 b.example.com\n");
+        LocalDatabase database = LocalDatabase.load(dataFile.getPath(), false, 0);
+        assertNotNull(database);
+        assertEquals("10.0.0.2", database.snapshot().formatAnswer(lookup(database.snapshot(), "a.example.com")));
+
+        assertTrue(database.apply("+ 10.0.0.4 a.example.com"));
+        assertTrue(database.apply("+ 10.0.0.5 a.example.com"));
+        database.reload().get(); // runs after the queued operations
+        LocalDatabase.Snapshot snapshot = database.snapshot();
+        assertEquals("10.0.0.4, 10.0.0.5", snapshot.formatAnswer(lookup(snapshot, "a.example.com")));
+        assertEquals(1 + 2 + 1, snapshot.size(), "base, overlay and the recent name");
+
+        for (int i = 0; i < LocalDatabase.FOLD_THRESHOLD; i++) {
+            assertTrue(database.apply("+ 10.1.0." + (i % 250 + 1) + " n" + i + ".example.com"));
+        }
+        database.reload().get();
+        LocalDatabase.Snapshot folded = database.snapshot();
+        assertEquals(1 + 2 + LocalDatabase.FOLD_THRESHOLD, folded.size(), "recent names folded into the overlay");
+        assertEquals("10.0.0.4, 10.0.0.5", folded.formatAnswer(lookup(folded, "a.example.com")));
+        assertEquals("10.0.0.3", folded.formatAnswer(lookup(folded, "b.example.com")));
+        assertEquals("10.1.0.1", folded.formatAnswer(lookup(folded, "n0.example.com")));
+
+        assertTrue(database.apply("- a.example.com"));
+        database.reloadDiff().get();
+        assertEquals(-1, lookup(database.snapshot(), "a.example.com"));
+        assertFalse(database.apply("+ 10.0.0.1"));
+    }
+}
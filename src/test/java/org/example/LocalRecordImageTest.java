@@ -0,0 +1,129 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalRecordImageTest {
+    @TempDir
+    File dir;
+
+    private static LocalRecordTable table() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "host.example.com");
+        builder.add("2001:db8::1", "host.example.com");
+        builder.add("0.0.0.0", ".ads.example.com");
+        builder.cname("www.example.com", "host.example.com", 300);
+        return builder.build(false);
+    }
+
+    private static void overwrite(File file, long position, int value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.writeInt(value);
+        }
+    }
+
+    @Test
+    void mappedImageHasTheSameContentsAsTheTable() throws IOException {
+        File file = new File(dir, "dnsrelay.img");
+        LocalRecordTable table = table();
+
+        LocalRecordImage.write(table, file);
+        LocalRecordTable mapped = LocalRecordImage.map(file);
+
+        assertTrue(LocalRecordImage.isImage(file));
+        assertEquals(LocalRecordImage.HEADER_LENGTH + table.contents().remaining(), file.length());
+        assertEquals(table.size(), mapped.size());
+        assertEquals(table.getWildcardCount(), mapped.getWildcardCount());
+        assertEquals(table.contents(), mapped.contents());
+        assertFalse(new File(dir, "dnsrelay.img.tmp").exists());
+
+        byte[] name = LocalRecordTable.nameToWire("host.example.com");
+        int entry = mapped.find(name, 0, name.length, LocalRecordTable.hashName(name, 0, name.length));
+        assertEquals("10.0.0.1, 2001:db8:0:0:0:0:0:1", mapped.formatAnswer(entry));
+    }
+
+    @Test
+    void writingReplacesAnExistingImage() throws IOException {
+        File file = new File(dir, "dnsrelay.img");
+        LocalRecordImage.write(table(), file);
+
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.2", "other.example.com");
+        LocalRecordImage.write(builder.build(false), file);
+
+        assertEquals(1, LocalRecordImage.map(file).size());
+    }
+
+    @Test
+    void textFilesAreNotImages() throws IOException {
+        File file = new File(dir, "dnsrelay.txt");
+        Files.writeString(file.toPath(), "10.0.0.1 host.example.com\n");
+
+        assertFalse(LocalRecordImage.isImage(file));
+        assertFalse(LocalRecordImage.isImage(new File(dir, "missing.img")));
+        IOException e = assertThrows(IOException.class, () -> LocalRecordImage.map(file));
+        assertTrue(e.getMessage().startsWith("Not a compiled database image"));
+    }
+
+    @Test
+    void corruptedTableFailsVerification() throws IOException {
+        File file = new File(dir, "dnsrelay.img");
+        LocalRecordImage.write(table(), file);
+        assertEquals(table().size(), LocalRecordImage.verify(file));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(file.length() - 1);
+            int last = raf.read();
+            raf.seek(file.length() - 1);
+            raf.write(last ^ 0x01);
+        }
+
+        // Mapping only checks the header, so it does not read the table.
+        assertEquals(table().size(), LocalRecordImage.map(file).size());
+        IOException e = assertThrows(IOException.class, () -> LocalRecordImage.verify(file));
+        assertTrue(e.getMessage().startsWith("Checksum mismatch"));
+    }
+
+    @Test
+    void otherVersionsAreRejected() throws IOException {
+        File file = new File(dir, "dnsrelay.img");
+        LocalRecordImage.write(table(), file);
+        overwrite(file, 4, LocalRecordImage.VERSION + 1);
+
+        IOException e = assertThrows(IOException.class, () -> LocalRecordImage.map(file));
+        assertTrue(e.getMessage().startsWith("Unsupported image version"));
+    }
+
+    @Test
+    void truncatedImagesAreRejected() throws IOException {
+        File file = new File(dir, "dnsrelay.img");
+        LocalRecordImage.write(table(), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 4);
+        }
+
+        IOException e = assertThrows(IOException.class, () -> LocalRecordImage.map(file));
+        assertTrue(e.getMessage().startsWith("Truncated or oversized"));
+    }
+
+    @Test
+    void offHeapTablesAreWrittenToo() throws IOException {
+        File file = new File(dir, "dnsrelay.img");
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "host.example.com");
+        LocalRecordTable table = builder.build(true);
+
+        LocalRecordImage.write(table, file);
+
+        ByteBuffer contents = LocalRecordImage.map(file).contents();
+        assertEquals(table.contents(), contents);
+    }
+}
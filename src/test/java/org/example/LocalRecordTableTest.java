@@ -0,0 +1,144 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalRecordTableTest {
+
+    private static int find(LocalRecordTable table, String name) {
+        byte[] wire = LocalRecordTable.nameToWire(name);
+        return table.find(wire, 0, wire.length, LocalRecordTable.hashName(wire, 0, wire.length));
+    }
+
+    @Test
+    void addressesOfANameAccumulate() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "host.example.com");
+        builder.add("10.0.0.2", "host.example.com");
+        builder.add("2001:db8::1", "host.example.com");
+        LocalRecordTable table = builder.build(false);
+
+        int host = find(table, "host.example.com");
+        assertEquals(1, table.size());
+        assertEquals("10.0.0.1, 10.0.0.2, 2001:db8:0:0:0:0:0:1", table.formatAnswer(host));
+        assertEquals(LocalRecordTable.TYPE_A, table.getAnswerType(host));
+        assertEquals(2, table.countAnswers(host, LocalRecordTable.TYPE_A));
+        assertEquals(1, table.countAnswers(host, LocalRecordTable.TYPE_AAAA));
+        assertEquals(3, table.countAnswers(host, LocalRecordTable.TYPE_ANY));
+        assertEquals(0, table.countAnswers(host, LocalRecordTable.TYPE_CNAME));
+    }
+
+    @Test
+    void repeatedAddressMovesToTheEndWithItsNewTtl() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "host.example.com", 60);
+        builder.add("10.0.0.2", "host.example.com", 60);
+        builder.add("10.0.0.1", "host.example.com", 120);
+        LocalRecordTable table = builder.build(false);
+        int host = find(table, "host.example.com");
+        byte[] out = new byte[512];
+
+        int end = table.writeAnswers(host, LocalRecordTable.TYPE_A, 0, out, DNSPacketUtil.HEADER_LENGTH,
+                DNSPacketUtil.HEADER_LENGTH, out.length);
+
+        assertEquals("10.0.0.2, 10.0.0.1", table.formatAnswer(host));
+        assertEquals(DNSPacketUtil.HEADER_LENGTH + 2 * 16, end);
+        assertEquals(2, DNSPacketUtil.readU16(out, 6));
+        assertEquals(60, DNSPacketUtil.readU32(out, DNSPacketUtil.HEADER_LENGTH + 6));
+        assertEquals(120, DNSPacketUtil.readU32(out, DNSPacketUtil.HEADER_LENGTH + 16 + 6));
+    }
+
+    @Test
+    void aliasAndAddressesReplaceEachOther() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "alias.example.com");
+        builder.cname("alias.example.com", "host.example.com", 300);
+        builder.add("10.0.0.3", "address.example.com");
+        builder.cname("address.example.com", "host.example.com", 300);
+        builder.add("10.0.0.4", "address.example.com");
+        LocalRecordTable table = builder.build(false);
+
+        int alias = find(table, "alias.example.com");
+        assertEquals(LocalRecordTable.TYPE_CNAME, table.getAnswerType(alias));
+        assertEquals("CNAME host.example.com", table.formatAnswer(alias));
+        assertEquals("10.0.0.4", table.formatAnswer(find(table, "address.example.com")));
+    }
+
+    @Test
+    void laterLineDecidesBetweenBlockAndAddress() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "blocked.example.com");
+        builder.add("0.0.0.0", "blocked.example.com");
+        builder.add("0.0.0.0", "unblocked.example.com");
+        builder.add("10.0.0.2", "unblocked.example.com");
+        LocalRecordTable table = builder.build(false);
+
+        int blocked = find(table, "blocked.example.com");
+        assertTrue(table.isBlocked(blocked));
+        assertEquals(0, table.countAnswers(blocked, LocalRecordTable.TYPE_ANY));
+        int unblocked = find(table, "unblocked.example.com");
+        assertFalse(table.isBlocked(unblocked));
+        assertEquals("10.0.0.2", table.formatAnswer(unblocked));
+    }
+
+    @Test
+    void allowFlagSurvivesLaterRecords() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.allow("first.example.com");
+        builder.add("10.0.0.1", "first.example.com");
+        builder.add("10.0.0.2", "second.example.com");
+        builder.allow("second.example.com");
+        LocalRecordTable table = builder.build(false);
+
+        int first = find(table, "first.example.com");
+        int second = find(table, "second.example.com");
+        assertTrue(table.hasFlag(first, LocalRecordTable.FLAG_ALLOW));
+        assertEquals("10.0.0.1", table.formatAnswer(first));
+        assertTrue(table.hasFlag(second, LocalRecordTable.FLAG_ALLOW));
+        assertEquals("10.0.0.2", table.formatAnswer(second));
+    }
+
+    @Test
+    void removalIsATombstoneWithoutData() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        builder.add("10.0.0.1", "gone.example.com");
+        builder.remove("gone.example.com");
+        LocalRecordTable table = builder.build(false);
+
+        int gone = find(table, "gone.example.com");
+        assertTrue(table.hasFlag(gone, LocalRecordTable.FLAG_REMOVED));
+        assertFalse(table.hasData(gone));
+    }
+
+    @Test
+    void invalidLinesAreRejected() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+
+        assertFalse(builder.add("10.0.0.256", "host.example.com"));
+        assertFalse(builder.add("10.0.0.1", "host.example.com", -1));
+        assertFalse(builder.add("10.0.0.1", "host.example.com", LocalRecordTable.MAX_TTL + 1));
+        assertFalse(builder.add("10.0.0.1", "bad..example.com"));
+        assertFalse(builder.add("0.0.0.0", "."));
+        assertFalse(builder.cname("alias.example.com", "bad..example.com", 300));
+        assertEquals(0, builder.build(false).size());
+    }
+
+    @Test
+    void everyNameOfALargeTableIsFound() {
+        LocalRecordTable.Builder builder = new LocalRecordTable.Builder();
+        for (int i = 0; i < 20000; i++) {
+            builder.add("10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), "host" + i + ".example.com");
+        }
+        builder.add("0.0.0.0", "*.ads.example.com");
+        LocalRecordTable table = builder.build(true);
+
+        assertEquals(20001, table.size());
+        assertEquals(1, table.getWildcardCount());
+        for (int i = 0; i < 20000; i++) {
+            int entry = find(table, "host" + i + ".example.com");
+            assertEquals("10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), table.formatAnswer(entry));
+        }
+        assertEquals(-1, find(table, "host20000.example.com"));
+    }
+}
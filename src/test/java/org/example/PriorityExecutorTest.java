@@ -0,0 +1,81 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PriorityExecutorTest {
+
+    private static Runnable blockUntil(CountDownLatch started, CountDownLatch release) {
+        return () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    @Test
+    void urgentTasksRunWhileForwardedTasksBlockTheOtherWorkers() throws InterruptedException {
+        PriorityExecutor executor = new PriorityExecutor(2, 1, 16);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(blockUntil(started, release));
+            executor.execute(blockUntil(new CountDownLatch(1), release));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            CountDownLatch urgent = new CountDownLatch(1);
+            executor.executeUrgent(urgent::countDown);
+
+            assertTrue(urgent.await(5, TimeUnit.SECONDS), "the reserved worker serves the urgent lane");
+            assertEquals(1, executor.getForwardQueueSize(), "only one worker may run forwarded tasks");
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void fullLaneRejectsTasks() throws InterruptedException {
+        PriorityExecutor executor = new PriorityExecutor(1, 1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.executeUrgent(blockUntil(started, release));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            executor.executeUrgent(() -> { });
+            assertThrows(RejectedExecutionException.class, () -> executor.executeUrgent(() -> { }));
+            executor.execute(() -> { }); // the other lane has its own bound
+            assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void shutdownDrainsQueuedTasksAndRejectsNewOnes() throws InterruptedException {
+        PriorityExecutor executor = new PriorityExecutor(2, 1, 16);
+        CountDownLatch done = new CountDownLatch(4);
+        for (int i = 0; i < 2; i++) {
+            executor.execute(done::countDown);
+            executor.executeUrgent(done::countDown);
+        }
+
+        executor.shutdown();
+
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> { }));
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, done.getCount());
+        assertTrue(executor.isTerminated());
+    }
+}
@@ -0,0 +1,67 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+
+    private static InetAddress address(String ip) throws UnknownHostException {
+        return InetAddress.getByName(ip);
+    }
+
+    @Test
+    void burstIsServedThenTheNetworkIsLimited() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 5, 24, 56, 1024);
+        InetAddress client = address("192.0.2.10");
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(client), "query " + i);
+        }
+        assertFalse(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void clientsOfOneNetworkShareABucket() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 2, 24, 56, 1024);
+
+        assertTrue(limiter.tryAcquire(address("192.0.2.1")));
+        assertTrue(limiter.tryAcquire(address("192.0.2.200")));
+        assertFalse(limiter.tryAcquire(address("192.0.2.77")));
+        assertTrue(limiter.tryAcquire(address("192.0.3.1")), "other /24");
+    }
+
+    @Test
+    void ipv6NetworksUseTheirOwnPrefixLength() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 1, 24, 56, 1024);
+
+        assertTrue(limiter.tryAcquire(address("2001:db8:0:100::1")));
+        assertFalse(limiter.tryAcquire(address("2001:db8:0:1ff::2")), "same /56");
+        assertTrue(limiter.tryAcquire(address("2001:db8:0:200::1")), "other /56");
+        assertTrue(limiter.tryAcquire(address("192.0.2.1")), "IPv4 is never the same network");
+    }
+
+    @Test
+    void bucketRefillsOverTime() throws UnknownHostException, InterruptedException {
+        RateLimiter limiter = new RateLimiter(100, 1, 24, 56, 1024);
+        InetAddress client = address("198.51.100.1");
+
+        assertTrue(limiter.tryAcquire(client));
+        assertFalse(limiter.tryAcquire(client));
+        Thread.sleep(30);
+        assertTrue(limiter.tryAcquire(client));
+    }
+
+    @Test
+    void manyNetworksDoNotLockOutANewOne() throws UnknownHostException {
+        RateLimiter limiter = new RateLimiter(1, 1, 32, 56, 64);
+        for (int i = 0; i < 5000; i++) {
+            limiter.tryAcquire(address("10." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ".1"));
+        }
+
+        assertTrue(limiter.tryAcquire(address("203.0.113.9")));
+    }
+}
@@ -0,0 +1,116 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Builds small DNS messages for the tests. Names keep the letter case they are given, so tests can check
+ * 0x20 randomization.
+ */
+final class TestPackets {
+    static final int TYPE_SOA = 6;
+
+    private TestPackets() {
+    }
+
+    /**
+     * @return The name in wire format, letter case preserved.
+     */
+    static byte[] wire(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            for (char c : label.toCharArray()) {
+                out.write(c);
+            }
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return A query with RD set for one question of class IN.
+     */
+    static byte[] query(String name, int type, int id) {
+        byte[] wire = wire(name);
+        byte[] query = new byte[DNSPacketUtil.HEADER_LENGTH + wire.length + 4];
+        DNSPacketUtil.writeU16(query, 0, id);
+        query[2] = 0x01; // RD
+        DNSPacketUtil.writeU16(query, 4, 1);
+        System.arraycopy(wire, 0, query, DNSPacketUtil.HEADER_LENGTH, wire.length);
+        DNSPacketUtil.writeU16(query, DNSPacketUtil.HEADER_LENGTH + wire.length, type);
+        DNSPacketUtil.writeU16(query, DNSPacketUtil.HEADER_LENGTH + wire.length + 2, LocalRecordTable.CLASS_IN);
+        return query;
+    }
+
+    static byte[] query(String name, int type) {
+        return query(name, type, 0x1234);
+    }
+
+    /**
+     * @return The message with an EDNS0 OPT record appended to the additional section.
+     */
+    static byte[] withOpt(byte[] message, int udpSize, boolean dnssecOk) {
+        byte[] result = new byte[message.length + DNSPacketUtil.OPT_RECORD_LENGTH];
+        System.arraycopy(message, 0, result, 0, message.length);
+        int opt = message.length;
+        DNSPacketUtil.writeU16(result, opt + 1, DNSPacketUtil.TYPE_OPT);
+        DNSPacketUtil.writeU16(result, opt + 3, udpSize);
+        result[opt + 7] = (byte) (dnssecOk ? 0x80 : 0);
+        DNSPacketUtil.writeU16(result, 10, DNSPacketUtil.readU16(result, 10) + 1);
+        return result;
+    }
+
+    /**
+     * @return A NOERROR response to a query (without OPT record) with one address record for the question
+     *         name.
+     */
+    static byte[] answer(byte[] query, long ttl, byte[] address) {
+        int type = address.length == 4 ? LocalRecordTable.TYPE_A : LocalRecordTable.TYPE_AAAA;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(query, 0, query.length);
+        out.writeBytes(record(0xC00C, type, ttl, address));
+        byte[] response = out.toByteArray();
+        response[2] = (byte) (0x80 | (query[2] & 0x01)); // QR, RD copied
+        response[3] = (byte) 0x80;                       // RA, NOERROR
+        DNSPacketUtil.writeU16(response, 6, 1);
+        return response;
+    }
+
+    /**
+     * @return A negative response (NXDOMAIN or NODATA) to a query, with an SOA record in the authority
+     *         section unless soaTtl is negative.
+     */
+    static byte[] negative(byte[] query, int rcode, long soaTtl, long soaMinimum) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(query, 0, query.length);
+        if (soaTtl >= 0) {
+            byte[] rdata = new byte[22]; // root MNAME and RNAME, then five 32-bit fields
+            DNSPacketUtil.writeU32(rdata, 18, soaMinimum);
+            out.writeBytes(record(0xC00C, TYPE_SOA, soaTtl, rdata));
+        }
+        byte[] response = out.toByteArray();
+        response[2] = (byte) (0x80 | (query[2] & 0x01));
+        response[3] = (byte) (0x80 | rcode);
+        DNSPacketUtil.writeU16(response, 8, soaTtl >= 0 ? 1 : 0);
+        return response;
+    }
+
+    private static byte[] record(int pointer, int type, long ttl, byte[] rdata) {
+        byte[] record = new byte[12 + rdata.length];
+        DNSPacketUtil.writeU16(record, 0, pointer);
+        DNSPacketUtil.writeU16(record, 2, type);
+        DNSPacketUtil.writeU16(record, 4, LocalRecordTable.CLASS_IN);
+        DNSPacketUtil.writeU32(record, 6, ttl);
+        DNSPacketUtil.writeU16(record, 10, rdata.length);
+        System.arraycopy(rdata, 0, record, 12, rdata.length);
+        return record;
+    }
+
+    /**
+     * @return The offset of the first answer record's TTL field in a response with one question.
+     */
+    static int firstTtlOffset(byte[] response) {
+        int questionEnd = DNSPacketUtil.skipName(response, DNSPacketUtil.HEADER_LENGTH, response.length) + 4;
+        return DNSPacketUtil.skipName(response, questionEnd, response.length) + 4;
+    }
+}